@@ -0,0 +1,229 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs.v2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeNameForSends;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeValue;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import threeguys.polymethods.aws.sqs.ArgumentMapper;
+import threeguys.polymethods.aws.sqs.ArgumentSerializer;
+import threeguys.polymethods.aws.sqs.ArgumentSerializers;
+import threeguys.polymethods.aws.sqs.SqsPolyMethod;
+import threeguys.polymethods.core.AsyncPolyMethod;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Counterpart of {@link SqsPolyMethod} on the AWS SDK v2 {@link SqsAsyncClient}. Sends do not hold a thread while
+ * waiting for SQS, the returned future completes on the client's event loop, so with the Netty client a few
+ * threads can carry thousands of concurrent sends. Messages are in the same format as those of
+ * {@link SqsPolyMethod}, and can be consumed by a {@code SqsPolyDispatcher}.
+ * <p>
+ * Only part of the {@link SqsPolyMethod} configuration is supported: the argument mappers, the result creator and
+ * streaming serializers. There are no body codecs, no claim checks and no send limits, and bodies over
+ * {@link #MAX_MESSAGE_SIZE} are rejected. Streaming serializers write into a new buffer for every call rather than
+ * a pooled one.
+ */
+public class SqsAsyncPolyMethod implements AsyncPolyMethod {
+
+    public static final int MAX_MESSAGE_SIZE = SqsPolyMethod.MAX_MESSAGE_SIZE;
+
+    private final String queue;
+    private final SqsAsyncClient sqs;
+    private final ArgumentMapper<String> serializer;
+    private final ArgumentMapper<String> dedup;
+    private final ArgumentMapper<String> group;
+    private final ArgumentMapper<Map<String, MessageAttributeValue>> attributes;
+    private final ArgumentMapper<Map<MessageSystemAttributeNameForSends, MessageSystemAttributeValue>> systemAttributes;
+    private final ArgumentMapper<Integer> delaySeconds;
+    private final SqsAsyncResultCreator resultCreator;
+
+    private ArgumentSerializer streaming;
+
+    public static ArgumentMapper<String> jsonSerializer() {
+        ObjectWriter writer = new ObjectMapper().writer();
+        return writer::writeValueAsString;
+    }
+
+    public static SqsAsyncResultCreator voidResultCreator() {
+        return (args, request, response) -> {
+            if (response == null) {
+                throw new IllegalStateException("Response cannot be null!");
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Client on the non-blocking Netty HTTP client, allowing up to {@code maxConcurrency} requests in flight.
+     * Region and credentials come from the default provider chains.
+     */
+    public static SqsAsyncClient client(int maxConcurrency) {
+        return SqsAsyncClient.builder()
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrency)
+                        .maxPendingConnectionAcquires(Math.max(10000, maxConcurrency * 2)))
+                .build();
+    }
+
+    public SqsAsyncPolyMethod(String queue, SqsAsyncClient sqs) {
+        this(queue, sqs, jsonSerializer(), null, null, null, null, null, voidResultCreator());
+    }
+
+    public SqsAsyncPolyMethod(String queue, SqsAsyncClient sqs,
+                              ArgumentMapper<String> serializer, ArgumentMapper<String> dedup, ArgumentMapper<String> group,
+                              ArgumentMapper<Map<String, MessageAttributeValue>> attributes,
+                              ArgumentMapper<Map<MessageSystemAttributeNameForSends, MessageSystemAttributeValue>> systemAttributes,
+                              ArgumentMapper<Integer> delaySeconds, SqsAsyncResultCreator resultCreator) {
+
+        if (queue == null || sqs == null || serializer == null || resultCreator == null) {
+            throw new NullPointerException();
+        }
+
+        this.queue = queue;
+        this.sqs = sqs;
+        this.serializer = serializer;
+        this.dedup = dedup;
+        this.group = group;
+        this.attributes = attributes;
+        this.systemAttributes = systemAttributes;
+        this.delaySeconds = delaySeconds;
+        this.resultCreator = resultCreator;
+    }
+
+    /**
+     * Serializes the arguments with the given serializer in place of the {@link ArgumentMapper}. Binary formats are
+     * base64 encoded, and any format other than JSON is marked with the
+     * {@link SqsPolyMethod#CONTENT_TYPE_ATTRIBUTE} message attribute.
+     */
+    public SqsAsyncPolyMethod withSerializer(ArgumentSerializer serializer) {
+        if (serializer == null) {
+            throw new NullPointerException();
+        }
+
+        this.streaming = serializer;
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<?> handleAsync(Object[] args) throws Throwable {
+        SendMessageRequest request = createRequest(args);
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        sqs.sendMessage(request).whenComplete((response, failure) -> {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+                return;
+            }
+
+            try {
+                future.complete(resultCreator.results(args, request, response));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    protected SendMessageRequest createRequest(Object[] args) throws Throwable {
+        SendMessageRequest.Builder request = SendMessageRequest.builder()
+                .queueUrl(queue);
+
+        if (dedup != null) {
+            request.messageDeduplicationId(dedup.map(args));
+        }
+
+        if (group != null) {
+            request.messageGroupId(group.map(args));
+        }
+
+        if (delaySeconds != null) {
+            request.delaySeconds(delaySeconds.map(args));
+        }
+
+        Map<String, MessageAttributeValue> attrs = attributes == null ? null : attributes.map(args);
+
+        if (systemAttributes != null) {
+            request.messageSystemAttributes(systemAttributes.map(args));
+        }
+
+        String body;
+        if (streaming != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            streaming.write(args, out);
+            body = streaming.isBinary()
+                    ? Base64.getEncoder().encodeToString(out.toByteArray())
+                    : new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+            if (!ArgumentSerializers.JSON.equals(streaming.getContentType())) {
+                // Never mutate the map handed out by the attributes mapper
+                attrs = attrs == null ? new HashMap<>() : new HashMap<>(attrs);
+                attrs.put(SqsPolyMethod.CONTENT_TYPE_ATTRIBUTE, MessageAttributeValue.builder()
+                        .dataType("String")
+                        .stringValue(streaming.getContentType())
+                        .build());
+            }
+        } else {
+            body = serializer.map(args);
+        }
+
+        if (attrs != null) {
+            request.messageAttributes(attrs);
+        }
+
+        int size = sizeOf(body, attrs);
+        if (size > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message of " + size + " bytes exceeds the maximum of "
+                    + MAX_MESSAGE_SIZE + " bytes for queue: " + queue);
+        }
+
+        return request.messageBody(body).build();
+    }
+
+    static int sizeOf(String body, Map<String, MessageAttributeValue> attributes) {
+        int size = SqsPolyMethod.utf8Length(body);
+        if (attributes != null) {
+            for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                MessageAttributeValue value = attribute.getValue();
+                size += SqsPolyMethod.utf8Length(attribute.getKey()) + SqsPolyMethod.utf8Length(value.dataType())
+                        + SqsPolyMethod.utf8Length(value.stringValue());
+                if (value.binaryValue() != null) {
+                    size += value.binaryValue().asByteArrayUnsafe().length;
+                }
+            }
+        }
+        return size;
+    }
+
+    protected String getQueue() {
+        return queue;
+    }
+
+    protected SqsAsyncClient getSqs() {
+        return sqs;
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs.v2;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for SQS. Sends are accepted immediately and answered from a single "event loop" thread once
+ * the gate opens, much like the Netty client completes responses on its I/O threads.
+ */
+class LocalSqsAsyncClient implements SqsAsyncClient {
+
+    final List<SendMessageRequest> sent = new CopyOnWriteArrayList<>();
+    final CountDownLatch gate;
+    final AtomicInteger ids = new AtomicInteger();
+    final ExecutorService eventLoop = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "local-sqs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    volatile String failBody;
+
+    LocalSqsAsyncClient(boolean open) {
+        this.gate = new CountDownLatch(open ? 0 : 1);
+    }
+
+    @Override
+    public CompletableFuture<SendMessageResponse> sendMessage(SendMessageRequest request) {
+        sent.add(request);
+
+        CompletableFuture<SendMessageResponse> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+
+            if (request.messageBody().equals(failBody)) {
+                future.completeExceptionally(SqsException.builder()
+                        .message("bad body")
+                        .statusCode(400)
+                        .build());
+            } else {
+                future.complete(SendMessageResponse.builder()
+                        .messageId("id-" + ids.incrementAndGet())
+                        .build());
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        eventLoop.shutdownNow();
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs.v2;
+
+import org.junit.Test;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+import threeguys.polymethods.aws.sqs.ArgumentSerializers;
+import threeguys.polymethods.aws.sqs.SqsPolyMethod;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSqsAsyncPolyMethod {
+
+    @Test
+    public void sendsRequest() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(true)) {
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs,
+                    SqsAsyncPolyMethod.jsonSerializer(),
+                    (args) -> "dedup-" + args[0], (args) -> "group", (args) -> Collections.singletonMap("trace",
+                            MessageAttributeValue.builder().dataType("String").stringValue("abc").build()),
+                    null, (args) -> 5, (args, request, response) -> response.messageId());
+
+            assertEquals("id-1", method.handleAsync(new Object[] { "hello", 42 }).get(5, TimeUnit.SECONDS));
+
+            SendMessageRequest request = sqs.sent.get(0);
+            assertEquals("my-queue", request.queueUrl());
+            assertEquals("[\"hello\",42]", request.messageBody());
+            assertEquals("dedup-hello", request.messageDeduplicationId());
+            assertEquals("group", request.messageGroupId());
+            assertEquals(Integer.valueOf(5), request.delaySeconds());
+            assertEquals("abc", request.messageAttributes().get("trace").stringValue());
+        }
+    }
+
+    @Test
+    public void blockingHandle() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(true)) {
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs);
+            assertNull(method.handle(new Object[] { "hello" }));
+            assertEquals(1, sqs.sent.size());
+        }
+    }
+
+    @Test
+    public void thousandsOfConcurrentSends() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(false)) {
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs, SqsAsyncPolyMethod.jsonSerializer(),
+                    null, null, null, null, null, (args, request, response) -> response.messageId());
+
+            // SQS has not answered any of these yet, the calling thread must not wait for it
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                futures.add(method.handleAsync(new Object[] { i }));
+            }
+
+            assertEquals(5000, sqs.sent.size());
+            for (CompletableFuture<?> future : futures) {
+                assertFalse(future.isDone());
+            }
+
+            sqs.gate.countDown();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            for (CompletableFuture<?> future : futures) {
+                assertTrue(((String) future.get()).startsWith("id-"));
+            }
+        }
+    }
+
+    @Test
+    public void sendFailure() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(true)) {
+            sqs.failBody = "[\"bad\"]";
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs);
+
+            try {
+                method.handleAsync(new Object[] { "bad" }).get(5, TimeUnit.SECONDS);
+                fail("Should have thrown");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SqsException);
+            }
+
+            try {
+                method.handle(new Object[] { "bad" });
+                fail("Should have thrown");
+            } catch (SqsException e) {
+                assertEquals(400, e.statusCode());
+            }
+        }
+    }
+
+    @Test
+    public void binarySerializer() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(true)) {
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs)
+                    .withSerializer(ArgumentSerializers.smile());
+
+            method.handle(new Object[] { "hello", 42 });
+
+            SendMessageRequest request = sqs.sent.get(0);
+            assertEquals(ArgumentSerializers.SMILE,
+                    request.messageAttributes().get(SqsPolyMethod.CONTENT_TYPE_ATTRIBUTE).stringValue());
+
+            byte [] raw = Base64.getDecoder().decode(request.messageBody().getBytes(StandardCharsets.US_ASCII));
+            assertArrayEquals(new Object[] { "hello", 42 }, ArgumentSerializers.smile()
+                    .read(new ByteArrayInputStream(raw), new Class<?>[] { String.class, Integer.class }));
+        }
+    }
+
+    @Test
+    public void tooLarge() throws Throwable {
+        try (LocalSqsAsyncClient sqs = new LocalSqsAsyncClient(true)) {
+            SqsAsyncPolyMethod method = new SqsAsyncPolyMethod("my-queue", sqs);
+            char [] big = new char[SqsAsyncPolyMethod.MAX_MESSAGE_SIZE];
+            Arrays.fill(big, 'x');
+
+            try {
+                method.handleAsync(new Object[] { new String(big) });
+                fail("Should have thrown");
+            } catch (IllegalArgumentException e) {
+                assertTrue(sqs.sent.isEmpty());
+            }
+        }
+    }
+
+}
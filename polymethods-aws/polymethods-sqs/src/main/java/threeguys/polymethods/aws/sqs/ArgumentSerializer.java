@@ -0,0 +1,35 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+/**
+ * Format used to turn method arguments into a message body and back. Binary formats are base64 encoded on the
+ * wire, since SQS bodies have to be text. Any format other than JSON is named in the
+ * {@link SqsPolyMethod#CONTENT_TYPE_ATTRIBUTE} message attribute so consumers can pick the matching serializer.
+ */
+public interface ArgumentSerializer extends ArgumentWriter {
+
+    String getContentType();
+
+    boolean isBinary();
+
+    Object [] read(InputStream in, Type [] types) throws IOException;
+
+}
@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Stock {@link ArgumentSerializer}s. Smile and CBOR need jackson-dataformat-smile and jackson-dataformat-cbor on the
+ * classpath respectively, both are optional dependencies and only loaded when asked for.
+ */
+public final class ArgumentSerializers {
+
+    public static final String JSON = "application/json";
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+
+    private static final ArgumentSerializer JSON_SERIALIZER =
+            new JacksonArgumentSerializer(new ObjectMapper(), JSON, false, true);
+
+    private static final class SmileHolder {
+        static final ArgumentSerializer INSTANCE =
+                new JacksonArgumentSerializer(new ObjectMapper(new SmileFactory()), SMILE, true);
+    }
+
+    private static final class CborHolder {
+        static final ArgumentSerializer INSTANCE =
+                new JacksonArgumentSerializer(new ObjectMapper(new CBORFactory()), CBOR, true, true);
+    }
+
+    private ArgumentSerializers() {
+    }
+
+    public static ArgumentSerializer json() {
+        return JSON_SERIALIZER;
+    }
+
+    public static ArgumentSerializer smile() {
+        return SmileHolder.INSTANCE;
+    }
+
+    public static ArgumentSerializer cbor() {
+        return CborHolder.INSTANCE;
+    }
+
+}
@@ -0,0 +1,27 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.OutputStream;
+
+/**
+ * Streaming counterpart of an {@link ArgumentMapper} serializer, writes the serialized arguments straight to a
+ * stream instead of materializing them as a String. Implementations must not close the stream.
+ */
+@FunctionalInterface
+public interface ArgumentWriter {
+    void write(Object [] values, OutputStream out) throws Throwable;
+}
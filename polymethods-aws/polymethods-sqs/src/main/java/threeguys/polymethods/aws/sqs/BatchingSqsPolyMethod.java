@@ -0,0 +1,249 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variant of {@link SqsPolyMethod} that coalesces concurrent calls into {@link SendMessageBatchRequest}s. Calls are
+ * queued and a single flusher thread sends a batch once it holds {@link #MAX_BATCH_ENTRIES} entries, once the next
+ * entry would push it over {@link #MAX_BATCH_SIZE} bytes, or once the linger time since the first queued entry has
+ * elapsed. Each caller blocks until its own entry succeeds or fails, and then goes through the same
+ * {@link SqsResultCreator} as a single send would.
+ */
+public class BatchingSqsPolyMethod extends SqsPolyMethod implements AutoCloseable {
+
+    public static final int MAX_BATCH_ENTRIES = 10;
+    public static final int MAX_BATCH_SIZE = MAX_MESSAGE_SIZE;
+
+    private static final long POLL_MILLIS = 100;
+
+    private final long lingerNanos;
+    private final Executor sendExecutor;
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+    private volatile boolean closed = false;
+
+    private static class Entry {
+        private final SendMessageRequest request;
+        private final int size;
+        private final CompletableFuture<SendMessageResult> future = new CompletableFuture<>();
+
+        Entry(SendMessageRequest request) {
+            this.request = request;
+            this.size = sizeOf(request);
+        }
+    }
+
+    public BatchingSqsPolyMethod(String queue, AmazonSQS sqs, long linger, TimeUnit unit) {
+        this(queue, sqs, jsonSerializer(), null, null, null, null, null, voidResultCreator(),
+                linger, unit, Runnable::run);
+    }
+
+    /**
+     * @param sendExecutor runs each {@code sendMessageBatch} call; a direct executor sends on the flusher thread,
+     *                     which allows only one batch in flight at a time
+     */
+    public BatchingSqsPolyMethod(String queue, AmazonSQS sqs,
+                                 ArgumentMapper<String> serializer, ArgumentMapper<String> dedup, ArgumentMapper<String> group,
+                                 ArgumentMapper<Map<String, MessageAttributeValue>> attributes,
+                                 ArgumentMapper<Map<String, MessageSystemAttributeValue>> systemAttributes,
+                                 ArgumentMapper<Integer> delaySeconds, SqsResultCreator resultCreator,
+                                 long linger, TimeUnit unit, Executor sendExecutor) {
+
+        super(queue, sqs, serializer, dedup, group, attributes, systemAttributes, delaySeconds, resultCreator);
+
+        if (unit == null || sendExecutor == null) {
+            throw new NullPointerException();
+        }
+
+        if (linger < 0) {
+            throw new IllegalArgumentException("Linger time cannot be negative: " + linger);
+        }
+
+        this.lingerNanos = unit.toNanos(linger);
+        this.sendExecutor = sendExecutor;
+        this.flusher = new Thread(this::flushLoop, "polymethods-sqs-batch-" + queue);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    protected SendMessageResult send(SendMessageRequest request) throws Throwable {
+        if (!running) {
+            throw new IllegalStateException("Batching is closed for queue: " + getQueue());
+        }
+
+        Entry entry = new Entry(request);
+        pending.add(entry);
+
+        // Lost the race with close(), the flusher may already have done its final drain
+        if (closed && pending.remove(entry)) {
+            throw new IllegalStateException("Batching is closed for queue: " + getQueue());
+        }
+
+        try {
+            return entry.future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        flusher.join();
+    }
+
+    private void flushLoop() {
+        Entry carry = null;
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_ENTRIES);
+
+        try {
+            while (running || carry != null || !pending.isEmpty()) {
+                Entry first = carry != null ? carry : pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                carry = null;
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                int bytes = first.size;
+                long deadline = System.nanoTime() + lingerNanos;
+
+                while (batch.size() < MAX_BATCH_ENTRIES) {
+                    long remaining = deadline - System.nanoTime();
+                    Entry next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+
+                    if (bytes + next.size > MAX_BATCH_SIZE) {
+                        carry = next;
+                        break;
+                    }
+
+                    batch.add(next);
+                    bytes += next.size;
+                }
+
+                dispatch(batch);
+                batch = new ArrayList<>(MAX_BATCH_ENTRIES);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IllegalStateException failure = new IllegalStateException("Batch flusher was interrupted");
+            fail(batch, failure);
+            if (carry != null) {
+                carry.future.completeExceptionally(failure);
+            }
+        }
+
+        closed = true;
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            entry.future.completeExceptionally(new IllegalStateException("Batching is closed for queue: " + getQueue()));
+        }
+    }
+
+    private void dispatch(List<Entry> batch) {
+        try {
+            sendExecutor.execute(() -> sendBatch(batch));
+        } catch (RuntimeException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void sendBatch(List<Entry> batch) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(toBatchEntry(Integer.toString(i), batch.get(i).request));
+        }
+
+        SendMessageBatchResult result;
+        try {
+            result = getSqs().sendMessageBatch(new SendMessageBatchRequest(getQueue(), entries));
+        } catch (RuntimeException e) {
+            fail(batch, e);
+            return;
+        }
+
+        if (result == null) {
+            fail(batch, new IllegalStateException("Batch result cannot be null!"));
+            return;
+        }
+
+        for (SendMessageBatchResultEntry success : result.getSuccessful()) {
+            batch.get(Integer.parseInt(success.getId())).future.complete(new SendMessageResult()
+                    .withMessageId(success.getMessageId())
+                    .withMD5OfMessageBody(success.getMD5OfMessageBody())
+                    .withMD5OfMessageAttributes(success.getMD5OfMessageAttributes())
+                    .withMD5OfMessageSystemAttributes(success.getMD5OfMessageSystemAttributes())
+                    .withSequenceNumber(success.getSequenceNumber()));
+        }
+
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            AmazonSQSException failure = new AmazonSQSException(error.getMessage());
+            failure.setErrorCode(error.getCode());
+            failure.setErrorType(Boolean.TRUE.equals(error.getSenderFault())
+                    ? AmazonServiceException.ErrorType.Client : AmazonServiceException.ErrorType.Service);
+            batch.get(Integer.parseInt(error.getId())).future.completeExceptionally(failure);
+        }
+
+        // Anything SQS left out of both lists would otherwise block its caller forever
+        fail(batch, new IllegalStateException("Batch result is missing entry"));
+    }
+
+    private static void fail(List<Entry> batch, Throwable failure) {
+        for (Entry entry : batch) {
+            entry.future.completeExceptionally(failure);
+        }
+    }
+
+    static SendMessageBatchRequestEntry toBatchEntry(String id, SendMessageRequest request) {
+        return new SendMessageBatchRequestEntry(id, request.getMessageBody())
+                .withDelaySeconds(request.getDelaySeconds())
+                .withMessageDeduplicationId(request.getMessageDeduplicationId())
+                .withMessageGroupId(request.getMessageGroupId())
+                .withMessageAttributes(request.getMessageAttributes())
+                .withMessageSystemAttributes(request.getMessageSystemAttributes());
+    }
+
+}
@@ -0,0 +1,174 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Per-thread reusable buffer the serialized body is written into. It holds up to a limit in memory; past that it
+ * either fails fast, or when a {@link BlobStore} is given, moves everything written so far and all further writes
+ * to a new blob.
+ */
+class BodyBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 4096;
+
+    // Anything larger than a message that could be sent inline is not worth holding on to between calls
+    private static final int MAX_RETAINED_SIZE = SqsPolyMethod.MAX_MESSAGE_SIZE;
+
+    private static final ThreadLocal<BodyBuffer> POOL = ThreadLocal.withInitial(BodyBuffer::new);
+
+    private byte [] buffer = new byte[INITIAL_SIZE];
+    private int count;
+    private int limit;
+    private BlobStore store;
+    private String key;
+    private OutputStream spill;
+    private boolean inUse;
+
+    static BodyBuffer acquire(int limit, BlobStore store) {
+        BodyBuffer body = POOL.get();
+        if (body.inUse) {
+            // Re-entrant send from within a serializer, don't clobber the outer body
+            body = new BodyBuffer();
+        }
+
+        body.inUse = true;
+        body.count = 0;
+        body.limit = limit;
+        body.store = store;
+        body.key = null;
+        body.spill = null;
+        return body;
+    }
+
+    void release() {
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        store = null;
+        spill = null;
+        inUse = false;
+    }
+
+    boolean isSpilled() {
+        return spill != null;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    byte [] array() {
+        return buffer;
+    }
+
+    int size() {
+        return count;
+    }
+
+    String toUtf8() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    String toBase64() {
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(buffer, 0, count));
+        return new String(encoded.array(), 0, encoded.remaining(), StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (spill == null && count < buffer.length && count < limit) {
+            buffer[count++] = (byte) b;
+        } else {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) throws IOException {
+        if (spill != null) {
+            spill.write(b, off, len);
+            return;
+        }
+
+        if (count + len > limit) {
+            if (store == null) {
+                throw new IllegalArgumentException("Message body exceeds the maximum of " + limit + " bytes");
+            }
+
+            key = UUID.randomUUID().toString();
+            spill = store.create(key);
+            spill.write(buffer, 0, count);
+            spill.write(b, off, len);
+            count = 0;
+            return;
+        }
+
+        if (count + len > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spill != null) {
+            spill.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /**
+     * Moves a body held in memory to a new blob, for a body that turned out not to fit in a message after all.
+     */
+    void moveToStore() throws IOException {
+        key = UUID.randomUUID().toString();
+        spill = store.create(key);
+        try {
+            spill.write(buffer, 0, count);
+            spill.close();
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        count = 0;
+    }
+
+    /**
+     * Abandons a failed write, removing the blob if the body had already spilled.
+     */
+    void discard() throws IOException {
+        if (spill != null) {
+            spill.close();
+            store.delete(key);
+        }
+    }
+
+}
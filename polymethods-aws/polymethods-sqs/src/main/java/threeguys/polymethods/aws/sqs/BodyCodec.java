@@ -0,0 +1,34 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte level encoding applied to serialized message bodies, e.g. compression. The name is sent with each encoded
+ * message in the {@link SqsPolyMethod#ENCODING_ATTRIBUTE} attribute so consumers can pick the matching decoder.
+ */
+public interface BodyCodec {
+
+    String getName();
+
+    OutputStream encode(OutputStream out) throws IOException;
+
+    InputStream decode(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,72 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public final class BodyCodecs {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private BodyCodecs() {
+    }
+
+    public static BodyCodec gzip() {
+        return new BodyCodec() {
+            @Override
+            public String getName() {
+                return GZIP;
+            }
+
+            @Override
+            public OutputStream encode(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out);
+            }
+
+            @Override
+            public InputStream decode(InputStream in) throws IOException {
+                return new GZIPInputStream(in);
+            }
+        };
+    }
+
+    public static BodyCodec deflate() {
+        return new BodyCodec() {
+            @Override
+            public String getName() {
+                return DEFLATE;
+            }
+
+            @Override
+            public OutputStream encode(OutputStream out) {
+                return new DeflaterOutputStream(out);
+            }
+
+            @Override
+            public InputStream decode(InputStream in) {
+                return new InflaterInputStream(in);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * {@link ArgumentSerializer} writing the arguments as an array with any Jackson backed format. The
+ * {@link ObjectWriter} is resolved once up front, and Jackson caches the serializer for each argument type it
+ * encounters, so a send does not repeat any of that lookup work.
+ * <p>
+ * With {@code reuseGenerators} each thread keeps its last {@link JsonGenerator}, and reuses it when asked to write
+ * to the same stream again, which is the case for the pooled buffers {@link SqsPolyMethod} writes into. Only enable
+ * it for formats that write nothing but the value itself, e.g. not Smile, which starts every document with a header.
+ */
+public class JacksonArgumentSerializer implements ArgumentSerializer {
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter writer;
+    private final String contentType;
+    private final boolean binary;
+    private final ThreadLocal<JsonGenerator> generators;
+
+    public JacksonArgumentSerializer(ObjectMapper mapper, String contentType, boolean binary) {
+        this(mapper, contentType, binary, false);
+    }
+
+    public JacksonArgumentSerializer(ObjectMapper mapper, String contentType, boolean binary, boolean reuseGenerators) {
+        if (mapper == null || contentType == null) {
+            throw new NullPointerException();
+        }
+
+        // Binary generators have no root value separator, text ones need it cleared for generator reuse
+        ObjectWriter writer = mapper.writerFor(Object[].class).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.mapper = mapper;
+        this.writer = binary ? writer : writer.withRootValueSeparator("");
+        this.contentType = contentType;
+        this.binary = binary;
+        this.generators = reuseGenerators ? new ThreadLocal<>() : null;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public void write(Object[] values, OutputStream out) throws IOException {
+        if (generators == null) {
+            writer.writeValue(out, values);
+            return;
+        }
+
+        JsonGenerator generator = generators.get();
+        if (generator == null || generator.getOutputTarget() != out) {
+            generator = mapper.getFactory().createGenerator(out);
+            generators.set(generator);
+        }
+
+        try {
+            writer.writeValue(generator, values);
+            generator.flush();
+        } catch (IOException | RuntimeException e) {
+            // A failed write leaves the generator mid-document
+            generators.remove();
+            throw e;
+        }
+    }
+
+    @Override
+    public Object[] read(InputStream in, Type[] types) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected an array of arguments");
+            }
+
+            Object [] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                if (parser.nextToken() == JsonToken.END_ARRAY) {
+                    throw new IOException("Expected " + types.length + " arguments, got " + i);
+                }
+                args[i] = mapper.readValue(parser, mapper.getTypeFactory().constructType(types[i]));
+            }
+
+            if (parser.nextToken() != JsonToken.END_ARRAY) {
+                throw new IOException("Expected " + types.length + " arguments, got more");
+            }
+
+            return args;
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * {@link BlobStore} keeping one file per blob in a local directory, e.g. a volume shared by producers and
+ * consumers. Blobs are written to a temporary file and moved into place on close, so readers never see a
+ * partially written payload.
+ */
+public class LocalFileBlobStore implements BlobStore {
+
+    private static final String TEMP_PREFIX = "blob-";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+
+    public LocalFileBlobStore(Path directory) throws IOException {
+        if (directory == null) {
+            throw new NullPointerException();
+        }
+
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public OutputStream create(String key) throws IOException {
+        Path target = resolve(key);
+        Path temp = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+
+        return new FilterOutputStream(Files.newOutputStream(temp)) {
+            private boolean closed = false;
+
+            @Override
+            public void write(byte [] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                super.close();
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        };
+    }
+
+    @Override
+    public InputStream open(String key) throws IOException {
+        return Files.newInputStream(resolve(key));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        try {
+            Files.delete(resolve(key));
+        } catch (NoSuchFileException e) {
+            // already gone
+        }
+    }
+
+    private Path resolve(String key) {
+        Path path = directory.resolve(key).normalize();
+        if (key.isEmpty() || !directory.equals(path.getParent())) {
+            throw new IllegalArgumentException("Invalid blob key: " + key);
+        }
+        return path;
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * One memory-mapped file of a {@link SqsOutbox} log. Records are laid out back to back as a length, a CRC32 of
+ * the payload and the payload itself. The length is written last, and a length of zero marks the end of the
+ * records, the file is zero filled when it is created.
+ * <p>
+ * Only the outbox's writer appends, under its lock. The drainer reads up to {@link #end}, which is published
+ * after each record is complete, and a segment no longer changes once it is {@link #sealed}.
+ */
+final class OutboxSegment {
+
+    static final int HEADER = 8;
+
+    final long sequence;
+    final Path path;
+    final MappedByteBuffer buffer;
+
+    volatile int end;
+    volatile boolean sealed;
+
+    private final FileChannel channel;
+
+    private OutboxSegment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static OutboxSegment create(Path path, long sequence, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new OutboxSegment(sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    /**
+     * Maps an existing segment and finds the end of its valid records. A record that is cut short or fails its
+     * CRC ends the segment, and whatever follows it is cleared so later appends cannot run into it.
+     */
+    static OutboxSegment recover(Path path, long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        OutboxSegment segment = new OutboxSegment(sequence, path, channel,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+
+        int position = 0;
+        int length;
+        while ((length = segment.length(position)) > 0) {
+            position += HEADER + length;
+        }
+
+        MappedByteBuffer buffer = segment.buffer;
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            for (int i = position; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        segment.end = position;
+        return segment;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    boolean fits(int length) {
+        return end + HEADER + length <= buffer.capacity();
+    }
+
+    /**
+     * Writes a record at the end of the segment, the caller checks it {@link #fits(int)} first.
+     */
+    void append(byte [] payload) {
+        int position = end;
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + HEADER);
+        target.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, payload.length);
+
+        end = position + HEADER + payload.length;
+    }
+
+    /**
+     * @return length of the valid record at {@code position}, or 0 if there is none
+     */
+    int length(int position) {
+        if (position + HEADER > buffer.capacity()) {
+            return 0;
+        }
+
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER + length > buffer.capacity()) {
+            return 0;
+        }
+
+        byte [] payload = read(position, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? length : 0;
+    }
+
+    byte [] read(int position, int length) {
+        byte [] payload = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + HEADER);
+        source.get(payload);
+        return payload;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+}
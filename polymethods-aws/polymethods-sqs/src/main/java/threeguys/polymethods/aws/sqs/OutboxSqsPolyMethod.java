@@ -0,0 +1,57 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import java.util.Map;
+
+/**
+ * Variant of {@link SqsPolyMethod} that appends each request to a {@link SqsOutbox} in place of sending it, and
+ * returns once the request is in the log. A call only fails if the request cannot be built or written locally,
+ * throttling and outages of SQS are absorbed by the outbox. The {@link SendMessageResult} handed to the
+ * {@link SqsResultCreator} carries the outbox record id as its message id, there is no SQS message id yet.
+ * <p>
+ * Limits set with {@link #withLimits} only pace the appends, use {@link SqsOutbox#withLimits} to pace the sends.
+ */
+public class OutboxSqsPolyMethod extends SqsPolyMethod {
+
+    private final SqsOutbox outbox;
+
+    public OutboxSqsPolyMethod(String queue, SqsOutbox outbox) {
+        this(queue, jsonSerializer(), null, null, null, null, null, voidResultCreator(), outbox);
+    }
+
+    public OutboxSqsPolyMethod(String queue,
+                               ArgumentMapper<String> serializer, ArgumentMapper<String> dedup, ArgumentMapper<String> group,
+                               ArgumentMapper<Map<String, MessageAttributeValue>> attributes,
+                               ArgumentMapper<Map<String, MessageSystemAttributeValue>> systemAttributes,
+                               ArgumentMapper<Integer> delaySeconds, SqsResultCreator resultCreator,
+                               SqsOutbox outbox) {
+
+        super(queue, outbox.getSqs(), serializer, dedup, group, attributes, systemAttributes, delaySeconds, resultCreator);
+        this.outbox = outbox;
+    }
+
+    @Override
+    protected SendMessageResult send(SendMessageRequest request) throws Throwable {
+        return new SendMessageResult().withMessageId(outbox.append(request));
+    }
+
+}
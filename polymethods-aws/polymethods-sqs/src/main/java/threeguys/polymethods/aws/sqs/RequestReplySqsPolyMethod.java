@@ -0,0 +1,114 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import threeguys.polymethods.core.AsyncPolyMethod;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Variant of {@link SqsPolyMethod} for methods that return a value. Each request carries a
+ * {@link #CORRELATION_ID_ATTRIBUTE} and the {@link #REPLY_TO_ATTRIBUTE} of the listener's queue, the
+ * {@link SqsPolyDispatcher} on the other side sends the result of the call back there, and the
+ * {@link SqsReplyListener} completes the future returned by {@link #handleAsync(Object[])} with it.
+ * <p>
+ * No thread is held while waiting for a reply, unless the call goes through {@link #handle(Object[])}.
+ */
+public class RequestReplySqsPolyMethod extends SqsPolyMethod implements AsyncPolyMethod {
+
+    private final SqsReplyListener replies;
+    private final Type resultType;
+    private final long timeout;
+    private final TimeUnit unit;
+
+    /**
+     * @param resultType type the reply is deserialized as
+     * @param timeout    how long to wait for the reply before failing with a
+     *                   {@link java.util.concurrent.TimeoutException}
+     */
+    public RequestReplySqsPolyMethod(String queue, AmazonSQS sqs, SqsReplyListener replies, Type resultType,
+                                     long timeout, TimeUnit unit) {
+        super(queue, sqs);
+
+        if (replies == null || resultType == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+
+        this.replies = replies;
+        this.resultType = resultType;
+        this.timeout = timeout;
+        this.unit = unit;
+    }
+
+    /**
+     * Replaces the given method, with the result type taken from its return type. For methods returning a
+     * {@link CompletableFuture} or {@link CompletionStage} it is the type the future completes with.
+     */
+    public static RequestReplySqsPolyMethod forMethod(String queue, AmazonSQS sqs, SqsReplyListener replies,
+                                                      Method method, long timeout, TimeUnit unit) {
+        return new RequestReplySqsPolyMethod(queue, sqs, replies, resultType(method), timeout, unit);
+    }
+
+    static Type resultType(Method method) {
+        Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            Type raw = ((ParameterizedType) type).getRawType();
+            if (raw == CompletableFuture.class || raw == CompletionStage.class) {
+                return ((ParameterizedType) type).getActualTypeArguments()[0];
+            }
+        } else if (type == CompletableFuture.class || type == CompletionStage.class) {
+            return Object.class;
+        }
+        return type;
+    }
+
+    @Override
+    public CompletableFuture<?> handleAsync(Object[] args) throws Throwable {
+        SendMessageRequest request = createRequest(args);
+
+        String correlationId = UUID.randomUUID().toString();
+        addAttribute(request, CORRELATION_ID_ATTRIBUTE, correlationId);
+        addAttribute(request, REPLY_TO_ATTRIBUTE, replies.getQueue());
+
+        // Registered first, the reply can arrive before the send returns
+        CompletableFuture<Object> future = replies.register(correlationId, resultType, timeout, unit);
+        try {
+            sendLimited(request);
+        } catch (Throwable t) {
+            releaseClaim(request);
+            replies.cancel(correlationId, t);
+        }
+        return future;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        return AsyncPolyMethod.super.handle(args);
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Consumer side counterpart of {@link SqsPolyMethod}, turns a received {@link Message} back into the bytes the
+ * serializer produced. Claim checked payloads ({@link SqsPolyMethod#CLAIM_CHECK_ATTRIBUTE}) are streamed from the
+ * blob store, any {@link BodyCodec} named in the {@link SqsPolyMethod#ENCODING_ATTRIBUTE} is reversed, and
+ * binary formats are base64 decoded. The gzip and deflate codecs and the stock {@link ArgumentSerializers} are known
+ * by default, others have to be registered.
+ */
+public class SqsMessageDecoder {
+
+    private final Map<String, BodyCodec> codecs = new ConcurrentHashMap<>();
+    private final Map<String, ArgumentSerializer> serializers = new ConcurrentHashMap<>();
+    private final BlobStore blobStore;
+
+    public SqsMessageDecoder() {
+        this(null);
+    }
+
+    public SqsMessageDecoder(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        register(BodyCodecs.gzip());
+        register(BodyCodecs.deflate());
+        register(ArgumentSerializers.json());
+    }
+
+    public SqsMessageDecoder register(BodyCodec codec) {
+        codecs.put(codec.getName(), codec);
+        return this;
+    }
+
+    public SqsMessageDecoder register(ArgumentSerializer serializer) {
+        serializers.put(serializer.getContentType(), serializer);
+        return this;
+    }
+
+    /**
+     * Deserializes the arguments of a message, using the serializer matching its content type.
+     */
+    public Object [] readArguments(Message message, Type [] types) throws IOException {
+        ArgumentSerializer serializer = serializerFor(message);
+        try (InputStream in = open(message)) {
+            return serializer.read(in, types);
+        }
+    }
+
+    private ArgumentSerializer serializerFor(Message message) throws IOException {
+        MessageAttributeValue contentType = message.getMessageAttributes().get(SqsPolyMethod.CONTENT_TYPE_ATTRIBUTE);
+        String name = contentType == null ? ArgumentSerializers.JSON : contentType.getStringValue();
+
+        ArgumentSerializer serializer = serializers.get(name);
+        if (serializer == null) {
+            if (ArgumentSerializers.SMILE.equals(name)) {
+                serializer = ArgumentSerializers.smile();
+            } else if (ArgumentSerializers.CBOR.equals(name)) {
+                serializer = ArgumentSerializers.cbor();
+            } else {
+                throw new IOException("Unknown message content type: " + name);
+            }
+        }
+        return serializer;
+    }
+
+    public InputStream open(Message message) throws IOException {
+        Map<String, MessageAttributeValue> attributes = message.getMessageAttributes();
+
+        MessageAttributeValue claim = attributes.get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE);
+        if (claim != null) {
+            if (blobStore == null) {
+                throw new IOException("Message is a claim check but no blob store is configured: " + claim.getStringValue());
+            }
+            return blobStore.open(claim.getStringValue());
+        }
+
+        MessageAttributeValue encoding = attributes.get(SqsPolyMethod.ENCODING_ATTRIBUTE);
+        if (encoding == null) {
+            if (serializerFor(message).isBinary()) {
+                return Base64.getDecoder().wrap(
+                        new ByteArrayInputStream(message.getBody().getBytes(StandardCharsets.US_ASCII)));
+            }
+            return new ByteArrayInputStream(message.getBody().getBytes(StandardCharsets.UTF_8));
+        }
+
+        BodyCodec codec = codecs.get(encoding.getStringValue());
+        if (codec == null) {
+            throw new IOException("Unknown message body encoding: " + encoding.getStringValue());
+        }
+
+        return codec.decode(Base64.getDecoder().wrap(
+                new ByteArrayInputStream(message.getBody().getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    public String decode(Message message) throws IOException {
+        if (message.getMessageAttributes().isEmpty()) {
+            return message.getBody();
+        }
+
+        try (InputStream in = open(message)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(message.getBody().length() * 4);
+            byte [] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Deletes the claim checked payload of a message once it has been processed, a no-op for regular messages.
+     */
+    public void release(Message message) throws IOException {
+        MessageAttributeValue claim = message.getMessageAttributes().get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE);
+        if (claim != null && blobStore != null) {
+            blobStore.delete(claim.getStringValue());
+        }
+    }
+
+}
@@ -0,0 +1,840 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import threeguys.polymethods.core.limit.AdaptiveLimiter;
+import threeguys.polymethods.core.limit.TokenBucket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable local queue in front of SQS. {@link #append(SendMessageRequest)} writes a fully built request to an
+ * append-only log of memory-mapped segment files and returns, and a drainer thread sends the log to SQS in
+ * batches of up to {@link BatchingSqsPolyMethod#MAX_BATCH_ENTRIES}, in order, retrying with exponential backoff
+ * while SQS throttles or cannot be reached. Callers therefore see neither the latency nor the failures of SQS,
+ * see {@link OutboxSqsPolyMethod}.
+ * <p>
+ * A checkpoint file records how far the log has been delivered, and segments before it are deleted. When an
+ * outbox is opened on an existing directory, everything after the checkpoint is sent again, so delivery is at
+ * least once; FIFO queues drop the duplicates through the deduplication id. A record cut short by a crash fails
+ * its CRC and ends the log. How much a crash can lose depends on the {@link Fsync} policy.
+ * <p>
+ * Entries SQS rejects as the sender's fault, such as an invalid body, would fail forever and are dropped, and so are
+ * whole batches SQS rejects with a client error other than throttling, such as a queue that does not exist, and
+ * records that cannot be decoded. Any other failure is retried. Dropped records are appended to a dead letter file
+ * in the directory, from where {@link #readDeadLetters(Path)} can recover them, e.g. to send them again once the
+ * queue is fixed.
+ */
+public class SqsOutbox implements AutoCloseable {
+
+    public enum Fsync {
+        /** Every record is forced to disk before {@link #append(SendMessageRequest)} returns. */
+        ALWAYS,
+        /**
+         * The log is forced to disk every {@code 100ms} by a thread of its own, a machine crash can lose the records
+         * written since.
+         */
+        INTERVAL,
+        /** Writing back is left to the OS, records survive the process crashing but not the machine. */
+        NEVER
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DEAD_LETTERS = "dead-letters";
+    private static final int VERSION = 1;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path directory;
+    private final AmazonSQS sqs;
+    private final int segmentSize;
+    private final Fsync fsync;
+    private final FileChannel checkpoint;
+    private final FileChannel deadLetters;
+
+    private final ConcurrentSkipListMap<Long, OutboxSegment> segments = new ConcurrentSkipListMap<>();
+    private final Object writeLock = new Object();
+    private volatile OutboxSegment writing;
+    private volatile boolean dirty;
+
+    // Only used by the drainer thread
+    private OutboxSegment reading;
+    private int readPosition;
+    private Entry lookahead;
+
+    private volatile long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private volatile long maxBackoffNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile AdaptiveLimiter limiter;
+    private volatile TokenBucket rateLimit;
+
+    private final Thread drainer;
+    private final Thread flusher;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+
+    private final long recovered;
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder forced = new LongAdder();
+
+    private static final class Entry {
+        final SendMessageRequest request;
+        final int size;
+        final OutboxSegment segment;
+        final int next;
+
+        Entry(SendMessageRequest request, OutboxSegment segment, int next) {
+            this.request = request;
+            this.size = SqsPolyMethod.sizeOf(request);
+            this.segment = segment;
+            this.next = next;
+        }
+    }
+
+    public SqsOutbox(Path directory, AmazonSQS sqs) throws IOException {
+        this(directory, sqs, DEFAULT_SEGMENT_SIZE, Fsync.INTERVAL);
+    }
+
+    /**
+     * Opens the outbox in {@code directory}, and starts sending whatever an earlier outbox there left unsent.
+     *
+     * @param segmentSize size of each segment file, a record has to fit in one
+     */
+    public SqsOutbox(Path directory, AmazonSQS sqs, int segmentSize, Fsync fsync) throws IOException {
+        if (directory == null || sqs == null || fsync == null) {
+            throw new NullPointerException();
+        }
+
+        if (segmentSize <= OutboxSegment.HEADER) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+
+        this.directory = Files.createDirectories(directory);
+        this.sqs = sqs;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+        this.checkpoint = FileChannel.open(directory.resolve(CHECKPOINT), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.deadLetters = FileChannel.open(directory.resolve(DEAD_LETTERS), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        this.recovered = recover();
+
+        this.drainer = new Thread(this::drainLoop, "polymethods-sqs-outbox-" + directory.getFileName());
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+
+        if (fsync == Fsync.INTERVAL) {
+            this.flusher = new Thread(this::flushLoop, "polymethods-sqs-outbox-flush-" + directory.getFileName());
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Waits between {@code initial / 2} and {@code initial} after the first failed attempt, doubling with every
+     * further failure up to {@code max}.
+     */
+    public SqsOutbox withBackoff(long initial, long max, TimeUnit unit) {
+        if (initial <= 0 || max < initial) {
+            throw new IllegalArgumentException("Backoff must be positive and no more than its maximum");
+        }
+
+        this.initialBackoffNanos = unit.toNanos(initial);
+        this.maxBackoffNanos = unit.toNanos(max);
+        return this;
+    }
+
+    /**
+     * Paces the drainer, which takes a rate token and a permit for every batch it sends and waits for them as long
+     * as it takes. Either may be null, and both may be shared with {@link SqsPolyMethod}s sending to the same queue,
+     * see {@link SqsPolyMethod#withLimits}.
+     */
+    public SqsOutbox withLimits(AdaptiveLimiter limiter, TokenBucket rateLimit) {
+        this.limiter = limiter;
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * Adds a request to the log.
+     *
+     * @return id of the record, local to this outbox
+     */
+    public String append(SendMessageRequest request) throws IOException {
+        byte [] payload = encode(request);
+
+        String id;
+        synchronized (writeLock) {
+            if (!running) {
+                throw new IllegalStateException("Outbox is closed: " + directory);
+            }
+
+            OutboxSegment segment = writing;
+            if (!segment.fits(payload.length)) {
+                if (OutboxSegment.HEADER + payload.length > segmentSize) {
+                    throw new IllegalArgumentException("Record of " + payload.length
+                            + " bytes does not fit in a segment of " + segmentSize + " bytes");
+                }
+                segment = roll(segment);
+            }
+
+            id = segment.sequence + "-" + segment.end;
+            segment.append(payload);
+            if (fsync == Fsync.ALWAYS) {
+                segment.force();
+            } else {
+                dirty = true;
+            }
+            appended.increment();
+        }
+
+        if (idle) {
+            LockSupport.unpark(drainer);
+        }
+        return id;
+    }
+
+    private OutboxSegment roll(OutboxSegment full) throws IOException {
+        long sequence = full.sequence + 1;
+        OutboxSegment next = OutboxSegment.create(segmentPath(sequence), sequence, segmentSize);
+        segments.put(sequence, next);
+
+        if (fsync != Fsync.NEVER) {
+            full.force();
+        }
+        writing = next;
+        full.sealed = true;
+        return next;
+    }
+
+    /**
+     * Stops the drainer, anything not yet delivered stays in the log for the next outbox opened on the directory.
+     */
+    @Override
+    public void close() throws IOException, InterruptedException {
+        synchronized (writeLock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+
+        LockSupport.unpark(drainer);
+        drainer.join();
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            flusher.join();
+        }
+
+        for (OutboxSegment segment : segments.values()) {
+            if (fsync != Fsync.NEVER) {
+                segment.force();
+            }
+            segment.close();
+        }
+
+        if (fsync != Fsync.NEVER) {
+            checkpoint.force(false);
+            deadLetters.force(false);
+        }
+        checkpoint.close();
+        deadLetters.close();
+    }
+
+    AmazonSQS getSqs() {
+        return sqs;
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Maps the existing segments, drops the ones the checkpoint has passed and positions the reader.
+     *
+     * @return number of records still to be sent
+     */
+    private long recover() throws IOException {
+        long[] mark = readCheckpoint();
+
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                files.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())), path);
+            }
+        }
+
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            if (mark != null && file.getKey() < mark[0]) {
+                Files.delete(file.getValue());
+                continue;
+            }
+
+            OutboxSegment segment = OutboxSegment.recover(file.getValue(), file.getKey());
+            segment.sealed = true;
+            segments.put(segment.sequence, segment);
+        }
+
+        if (segments.isEmpty()) {
+            long sequence = mark == null ? 0 : mark[0];
+            segments.put(sequence, OutboxSegment.create(segmentPath(sequence), sequence, segmentSize));
+        }
+
+        writing = segments.lastEntry().getValue();
+        writing.sealed = false;
+
+        reading = segments.firstEntry().getValue();
+        readPosition = mark != null && reading.sequence == mark[0] ? (int) Math.min(mark[1], reading.end) : 0;
+
+        long count = 0;
+        for (OutboxSegment segment : segments.values()) {
+            int position = segment == reading ? readPosition : 0;
+            while (position < segment.end) {
+                position += OutboxSegment.HEADER + segment.buffer.getInt(position);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        while (buffer.hasRemaining() && checkpoint.read(buffer, buffer.position()) > 0) {
+            // keep reading
+        }
+
+        if (buffer.hasRemaining()) {
+            return null;
+        }
+
+        buffer.flip();
+        long sequence = buffer.getLong();
+        int position = buffer.getInt();
+        return checksum(sequence, position) == buffer.getInt() ? new long[] { sequence, position } : null;
+    }
+
+    private void writeCheckpoint(long sequence, int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(sequence).putInt(position).putInt(checksum(sequence, position)).flip();
+        while (buffer.hasRemaining()) {
+            checkpoint.write(buffer, buffer.position());
+        }
+
+        if (fsync == Fsync.ALWAYS) {
+            checkpoint.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    private static int checksum(long sequence, int position) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putLong(sequence).putInt(position).array(), 0, 12);
+        return (int) crc.getValue();
+    }
+
+    private void drainLoop() {
+        while (running) {
+            try {
+                List<Entry> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    idle = true;
+                    // An append racing with going idle may not have unparked us
+                    if ((lookahead = next()) == null) {
+                        LockSupport.parkNanos(this, TICK_NANOS);
+                    }
+                    idle = false;
+                } else if (deliver(batch)) {
+                    advance(batch.get(batch.size() - 1));
+                }
+
+            } catch (IOException e) {
+                pause(initialBackoffNanos);
+            }
+        }
+    }
+
+    private List<Entry> nextBatch() throws IOException {
+        List<Entry> batch = new ArrayList<>(BatchingSqsPolyMethod.MAX_BATCH_ENTRIES);
+        int bytes = 0;
+
+        Entry entry;
+        while (batch.size() < BatchingSqsPolyMethod.MAX_BATCH_ENTRIES && (entry = next()) != null) {
+            if (!batch.isEmpty() && (bytes + entry.size > BatchingSqsPolyMethod.MAX_BATCH_SIZE
+                    || !entry.request.getQueueUrl().equals(batch.get(0).request.getQueueUrl()))) {
+                lookahead = entry;
+                break;
+            }
+
+            batch.add(entry);
+            bytes += entry.size;
+        }
+        return batch;
+    }
+
+    private Entry next() {
+        if (lookahead != null) {
+            Entry entry = lookahead;
+            lookahead = null;
+            return entry;
+        }
+
+        while (true) {
+            // Once sealed, the end no longer moves
+            boolean sealed = reading.sealed;
+            if (readPosition < reading.end) {
+                int length = reading.buffer.getInt(readPosition);
+                byte [] payload = reading.read(readPosition, length);
+                readPosition += OutboxSegment.HEADER + length;
+
+                try {
+                    return new Entry(decode(payload), reading, readPosition);
+                } catch (IOException e) {
+                    dropped.increment();
+                    try {
+                        // Kept as it is, it cannot be sent either way
+                        deadLetter(payload);
+                    } catch (IOException failed) {
+                        // lost, but it must not hold up the records after it
+                    }
+                    continue;
+                }
+            }
+
+            Map.Entry<Long, OutboxSegment> following = segments.higherEntry(reading.sequence);
+            if (!sealed || following == null) {
+                return null;
+            }
+
+            reading = following.getValue();
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Sends a batch until every entry in it is either delivered or dropped.
+     *
+     * @return false if the outbox was closed first
+     */
+    private boolean deliver(List<Entry> batch) {
+        long backoff = initialBackoffNanos;
+        List<Entry> remaining = batch;
+        while (true) {
+            remaining = send(remaining);
+            if (remaining.isEmpty()) {
+                return true;
+            }
+
+            retries.increment();
+            if (!pause(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1))) {
+                return false;
+            }
+            backoff = Math.min(backoff * 2, maxBackoffNanos);
+        }
+    }
+
+    /**
+     * @return the entries to try again
+     */
+    private List<Entry> send(List<Entry> batch) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(BatchingSqsPolyMethod.toBatchEntry(Integer.toString(i), batch.get(i).request));
+        }
+
+        TokenBucket rateLimit = this.rateLimit;
+        if (rateLimit != null && !pause(rateLimit.reserve(Long.MAX_VALUE, TimeUnit.NANOSECONDS))) {
+            return batch;
+        }
+
+        AdaptiveLimiter limiter = this.limiter;
+        AdaptiveLimiter.Permit permit = null;
+        if (limiter != null && (permit = awaitPermit(limiter)) == null) {
+            return batch;
+        }
+
+        SendMessageBatchResult result;
+        try {
+            result = sqs.sendMessageBatch(new SendMessageBatchRequest(batch.get(0).request.getQueueUrl(), entries));
+            if (permit != null) {
+                permit.success();
+            }
+        } catch (AmazonServiceException e) {
+            release(permit, e);
+            if (e.getErrorType() == AmazonServiceException.ErrorType.Client && !SqsPolyMethod.isThrottling(e)) {
+                List<Entry> retry = new ArrayList<>();
+                for (Entry entry : batch) {
+                    drop(entry, retry);
+                }
+                return retry;
+            }
+            return batch;
+        } catch (RuntimeException e) {
+            release(permit, e);
+            return batch;
+        }
+
+        sent.add(result.getSuccessful().size());
+        List<Entry> retry = new ArrayList<>(result.getFailed().size());
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            if (Boolean.TRUE.equals(error.getSenderFault())) {
+                drop(batch.get(Integer.parseInt(error.getId())), retry);
+            } else {
+                retry.add(batch.get(Integer.parseInt(error.getId())));
+            }
+        }
+        return retry;
+    }
+
+    /**
+     * Moves an entry to the dead letters, or if that fails, keeps it to be tried again.
+     */
+    private void drop(Entry entry, List<Entry> retry) {
+        try {
+            deadLetter(encode(entry.request));
+            dropped.increment();
+        } catch (IOException e) {
+            retry.add(entry);
+        }
+    }
+
+    private void deadLetter(byte [] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer header = ByteBuffer.allocate(OutboxSegment.HEADER);
+        header.putInt(payload.length).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] record = { header, ByteBuffer.wrap(payload) };
+        while (record[1].hasRemaining()) {
+            deadLetters.write(record);
+        }
+
+        if (fsync == Fsync.ALWAYS) {
+            deadLetters.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Reads the records an outbox in {@code directory} dropped, see {@link SqsOutbox}. Records that cannot be decoded
+     * are skipped, and a record cut short by a crash ends the file.
+     */
+    public static List<SendMessageRequest> readDeadLetters(Path directory) throws IOException {
+        List<SendMessageRequest> requests = new ArrayList<>();
+        Path file = directory.resolve(DEAD_LETTERS);
+        if (!Files.exists(file)) {
+            return requests;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (buffer.remaining() >= OutboxSegment.HEADER) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            byte [] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            try {
+                requests.add(decode(payload));
+            } catch (IOException e) {
+                // not readable by this version
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @return null if the outbox was closed first
+     */
+    private AdaptiveLimiter.Permit awaitPermit(AdaptiveLimiter limiter) {
+        try {
+            while (running) {
+                AdaptiveLimiter.Permit permit = limiter.acquire(TICK_NANOS, TimeUnit.NANOSECONDS);
+                if (permit != null) {
+                    return permit;
+                }
+            }
+        } catch (InterruptedException e) {
+            // nothing interrupts the drainer, closing goes through running
+        }
+        return null;
+    }
+
+    private static void release(AdaptiveLimiter.Permit permit, RuntimeException e) {
+        if (permit == null) {
+            return;
+        }
+
+        if (SqsPolyMethod.isThrottling(e)) {
+            permit.dropped();
+        } else {
+            permit.ignore();
+        }
+    }
+
+    /**
+     * Moves the checkpoint past a delivered batch and deletes the segments it no longer needs.
+     */
+    private void advance(Entry last) throws IOException {
+        long sequence = last.segment.sequence;
+        int position = last.next;
+
+        if (last.segment.sealed && position >= last.segment.end) {
+            Map.Entry<Long, OutboxSegment> following = segments.higherEntry(sequence);
+            sequence = following.getKey();
+            position = 0;
+        }
+
+        writeCheckpoint(sequence, position);
+
+        Map.Entry<Long, OutboxSegment> oldest;
+        while ((oldest = segments.firstEntry()) != null && oldest.getKey() < sequence) {
+            segments.remove(oldest.getKey());
+            oldest.getValue().delete();
+        }
+    }
+
+    /**
+     * Forces the log for {@link Fsync#INTERVAL}, apart from the drainer so that appends keep being made durable
+     * while the drainer is backing off.
+     */
+    private void flushLoop() {
+        while (running) {
+            LockSupport.parkNanos(this, TICK_NANOS);
+            if (!dirty) {
+                continue;
+            }
+
+            dirty = false;
+            try {
+                writing.force();
+                checkpoint.force(false);
+                deadLetters.force(false);
+                forced.increment();
+            } catch (IOException e) {
+                // tried again on the next tick
+                dirty = true;
+            }
+        }
+    }
+
+    private boolean pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, Math.min(remaining, TICK_NANOS));
+        }
+        return running;
+    }
+
+    static byte [] encode(SendMessageRequest request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(SqsPolyMethod.sizeOf(request) + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(VERSION);
+        writeString(out, request.getQueueUrl());
+        writeString(out, request.getMessageBody());
+        writeString(out, request.getMessageDeduplicationId());
+        writeString(out, request.getMessageGroupId());
+        out.writeInt(request.getDelaySeconds() == null ? -1 : request.getDelaySeconds());
+
+        out.writeInt(request.getMessageAttributes().size());
+        for (Map.Entry<String, MessageAttributeValue> attribute : request.getMessageAttributes().entrySet()) {
+            MessageAttributeValue value = attribute.getValue();
+            writeString(out, attribute.getKey());
+            writeValue(out, value.getDataType(), value.getStringValue(), value.getBinaryValue());
+        }
+
+        out.writeInt(request.getMessageSystemAttributes().size());
+        for (Map.Entry<String, MessageSystemAttributeValue> attribute : request.getMessageSystemAttributes().entrySet()) {
+            MessageSystemAttributeValue value = attribute.getValue();
+            writeString(out, attribute.getKey());
+            writeValue(out, value.getDataType(), value.getStringValue(), value.getBinaryValue());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static SendMessageRequest decode(byte [] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown outbox record version: " + version);
+        }
+
+        SendMessageRequest request = new SendMessageRequest()
+                .withQueueUrl(readString(in))
+                .withMessageBody(readString(in))
+                .withMessageDeduplicationId(readString(in))
+                .withMessageGroupId(readString(in));
+
+        int delay = in.readInt();
+        if (delay >= 0) {
+            request.withDelaySeconds(delay);
+        }
+
+        int count = in.readInt();
+        Map<String, MessageAttributeValue> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            MessageAttributeValue value = new MessageAttributeValue()
+                    .withDataType(readString(in))
+                    .withStringValue(readString(in));
+            byte [] binary = readBytes(in);
+            attributes.put(name, binary == null ? value : value.withBinaryValue(ByteBuffer.wrap(binary)));
+        }
+
+        count = in.readInt();
+        Map<String, MessageSystemAttributeValue> systemAttributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            MessageSystemAttributeValue value = new MessageSystemAttributeValue()
+                    .withDataType(readString(in))
+                    .withStringValue(readString(in));
+            byte [] binary = readBytes(in);
+            systemAttributes.put(name, binary == null ? value : value.withBinaryValue(ByteBuffer.wrap(binary)));
+        }
+
+        return request.withMessageAttributes(attributes).withMessageSystemAttributes(systemAttributes);
+    }
+
+    private static void writeValue(DataOutputStream out, String dataType, String value, ByteBuffer binary) throws IOException {
+        writeString(out, dataType);
+        writeString(out, value);
+        if (binary == null) {
+            out.writeInt(-1);
+        } else {
+            ByteBuffer copy = binary.duplicate();
+            out.writeInt(copy.remaining());
+            while (copy.hasRemaining()) {
+                out.writeByte(copy.get());
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte [] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte [] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte [] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return records waiting to be sent, including the ones recovered from an earlier outbox
+     */
+    public long getBacklog() {
+        return recovered + appended.sum() - sent.sum() - dropped.sum();
+    }
+
+    public long getRecovered() {
+        return recovered;
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    long getForced() {
+        return forced.sum();
+    }
+
+    int getSegments() {
+        return segments.size();
+    }
+
+}
@@ -0,0 +1,482 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import threeguys.polymethods.core.PolyClass;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Consumer side of {@link SqsPolyMethod}: receives messages from the queue, turns them back into arguments with a
+ * {@link SqsMessageDecoder} and calls the target {@link PolyMethod} with them.
+ * <p>
+ * Poller threads long poll for up to {@link #MAX_RECEIVE} messages per call, and never hold more than the prefetch
+ * limit of received but unfinished messages, so a slow target slows down receiving instead of piling up messages
+ * whose visibility timeout is running out. Messages are handled on a pool of worker threads. Successful messages
+ * are deleted in batches of up to ten by a housekeeping thread, which also extends the visibility timeout of any
+ * message still being handled once half of it has passed. Failed messages are left alone, so they become visible
+ * again and are retried, or moved to the dead letter queue by the queue's redrive policy.
+ * <p>
+ * Messages sent by a {@link RequestReplySqsPolyMethod} name a reply queue, the result of the call is sent there as
+ * JSON under the same correlation id, and so is any failure, see {@link SqsReplyListener}. A result too large for a
+ * message is reported to the caller as an {@link IllegalStateException}. Requests without a correlation id cannot be
+ * answered, and fail without calling the target.
+ */
+public class SqsPolyDispatcher implements AutoCloseable {
+
+    public static final int MAX_RECEIVE = 10;
+    public static final int MAX_WAIT_SECONDS = 20;
+
+    private static final long HOUSEKEEPING_MILLIS = 100;
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final String queue;
+    private final AmazonSQS sqs;
+    private final PolyMethod target;
+    private final Type[] types;
+    private final SqsMessageDecoder decoder;
+    private final ArgumentWriter replySerializer = ArgumentSerializers.json();
+
+    private int pollers = 1;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int prefetch = MAX_RECEIVE * 2;
+    private int visibilityTimeoutSeconds = 30;
+
+    private final String name = "polymethods-sqs-dispatch-" + INSTANCES.incrementAndGet();
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Message> acks = new ConcurrentLinkedQueue<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    private Semaphore permits;
+    private ExecutorService pool;
+    private volatile boolean running;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder extended = new LongAdder();
+    private final LongAdder replied = new LongAdder();
+
+    private static final class InFlight {
+        final Message message;
+        volatile long expiresAt;
+
+        InFlight(Message message, long expiresAt) {
+            this.message = message;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public SqsPolyDispatcher(String queue, AmazonSQS sqs, PolyMethod target, Type[] types) {
+        this(queue, sqs, target, types, new SqsMessageDecoder());
+    }
+
+    /**
+     * @param types   generic parameter types of the replaced method, used to deserialize the arguments
+     * @param decoder decodes messages produced by the matching {@link SqsPolyMethod}, including any codecs,
+     *                serializers or blob store it uses
+     */
+    public SqsPolyDispatcher(String queue, AmazonSQS sqs, PolyMethod target, Type[] types, SqsMessageDecoder decoder) {
+        if (queue == null || sqs == null || target == null || types == null || decoder == null) {
+            throw new NullPointerException();
+        }
+
+        this.queue = queue;
+        this.sqs = sqs;
+        this.target = target;
+        this.types = types.clone();
+        this.decoder = decoder;
+    }
+
+    /**
+     * Dispatches messages to one method of a {@link PolyClass}, with argument types taken from the method.
+     */
+    public static SqsPolyDispatcher forMethod(String queue, AmazonSQS sqs, PolyClass clazz, Method method,
+                                              SqsMessageDecoder decoder) {
+        if (clazz == null || method == null) {
+            throw new NullPointerException();
+        }
+        return new SqsPolyDispatcher(queue, sqs, (args) -> clazz.invoke(null, method, args),
+                method.getGenericParameterTypes(), decoder);
+    }
+
+    /**
+     * @param pollers  threads receiving messages
+     * @param workers  threads calling the target
+     * @param prefetch most messages received but not yet handled, at least {@link #MAX_RECEIVE} is recommended
+     */
+    public SqsPolyDispatcher withConcurrency(int pollers, int workers, int prefetch) {
+        if (pollers <= 0 || workers <= 0 || prefetch <= 0) {
+            throw new IllegalArgumentException("Pollers, workers and prefetch must be positive");
+        }
+
+        this.pollers = pollers;
+        this.workers = workers;
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Visibility timeout requested for received messages, and extended by while they are being handled.
+     */
+    public SqsPolyDispatcher withVisibilityTimeout(int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Visibility timeout must be positive: " + seconds);
+        }
+
+        this.visibilityTimeoutSeconds = seconds;
+        return this;
+    }
+
+    public synchronized SqsPolyDispatcher start() {
+        if (pool != null) {
+            throw new IllegalStateException("Dispatcher was already started");
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        permits = new Semaphore(prefetch);
+        pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                (runnable) -> daemon(runnable, name + "-worker-" + count.incrementAndGet()));
+        running = true;
+
+        for (int i = 0; i < pollers; i++) {
+            threads.add(daemon(this::pollLoop, name + "-poller-" + i));
+        }
+        threads.add(daemon(this::housekeepingLoop, name + "-housekeeping"));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Stops receiving, waits for the messages already received to be handled and deletes the successful ones.
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+        if (pool == null || !running) {
+            return;
+        }
+
+        running = false;
+        for (int i = 0; i < pollers; i++) {
+            threads.get(i).join();
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        Thread housekeeping = threads.get(threads.size() - 1);
+        housekeeping.interrupt();
+        housekeeping.join();
+        flushAcks();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void pollLoop() {
+        while (running) {
+            int count;
+            try {
+                // Only ask for as many messages as there is room for
+                if (!permits.tryAcquire(1, MAX_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    continue;
+                }
+                count = 1;
+                while (count < MAX_RECEIVE && permits.tryAcquire()) {
+                    count++;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            List<Message> messages;
+            try {
+                messages = sqs.receiveMessage(new ReceiveMessageRequest(queue)
+                        .withMaxNumberOfMessages(count)
+                        .withWaitTimeSeconds(MAX_WAIT_SECONDS)
+                        .withVisibilityTimeout(visibilityTimeoutSeconds)
+                        .withMessageAttributeNames("All")
+                        .withAttributeNames("All")).getMessages();
+            } catch (RuntimeException e) {
+                permits.release(count);
+                backOff();
+                continue;
+            }
+
+            if (messages.size() < count) {
+                permits.release(count - messages.size());
+            }
+
+            long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds);
+            for (Message message : messages) {
+                received.increment();
+                inFlight.put(message.getReceiptHandle(), new InFlight(message, expiresAt));
+                pool.execute(() -> handle(message));
+            }
+        }
+    }
+
+    private void backOff() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(Message message) {
+        try {
+            String replyTo = SqsReplyListener.attribute(message, SqsPolyMethod.REPLY_TO_ATTRIBUTE);
+            if (replyTo == null) {
+                target.handle(decoder.readArguments(message, types));
+                processed.increment();
+            } else {
+                call(message, replyTo);
+            }
+            acks.add(message);
+        } catch (Throwable t) {
+            // Left for the visibility timeout to return it to the queue
+            failed.increment();
+            inFlight.remove(message.getReceiptHandle());
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Request/reply call, a failure is sent back to the caller rather than retried, so only a failure to send the
+     * reply leaves the message on the queue.
+     */
+    private void call(Message message, String replyTo) throws Throwable {
+        String correlationId = SqsReplyListener.attribute(message, SqsPolyMethod.CORRELATION_ID_ATTRIBUTE);
+        if (correlationId == null) {
+            throw new IllegalArgumentException("Request " + message.getMessageId() + " has no correlation id");
+        }
+
+        Object[] reply;
+        String error = null;
+        try {
+            reply = new Object[] { target.handle(decoder.readArguments(message, types)) };
+        } catch (Throwable t) {
+            reply = new Object[] { String.valueOf(t.getMessage()) };
+            error = t.getClass().getName();
+        }
+
+        SendMessageRequest request = reply(replyTo, correlationId, reply, error);
+        int size = SqsPolyMethod.sizeOf(request);
+        if (size > SqsPolyMethod.MAX_MESSAGE_SIZE) {
+            // Sending it would fail every time, and the caller would only see a timeout
+            error = IllegalStateException.class.getName();
+            request = reply(replyTo, correlationId, new Object[] { "Result too large for a reply: " + size
+                    + " bytes, the limit is " + SqsPolyMethod.MAX_MESSAGE_SIZE }, error);
+        }
+        sqs.sendMessage(request);
+
+        replied.increment();
+        if (error == null) {
+            processed.increment();
+        } else {
+            failed.increment();
+        }
+    }
+
+    private SendMessageRequest reply(String replyTo, String correlationId, Object[] reply, String error) throws Throwable {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        replySerializer.write(reply, body);
+
+        SendMessageRequest request = new SendMessageRequest(replyTo, new String(body.toByteArray(), StandardCharsets.UTF_8));
+        SqsPolyMethod.addAttribute(request, SqsPolyMethod.CORRELATION_ID_ATTRIBUTE, correlationId);
+        if (error != null) {
+            SqsPolyMethod.addAttribute(request, SqsPolyMethod.ERROR_ATTRIBUTE, error);
+        }
+        return request;
+    }
+
+    private void housekeepingLoop() {
+        long lastExtend = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(HOUSEKEEPING_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            flushAcks();
+
+            long now = System.nanoTime();
+            if (now - lastExtend >= TimeUnit.MILLISECONDS.toNanos(HOUSEKEEPING_MILLIS * 5)) {
+                extendVisibility(now);
+                lastExtend = now;
+            }
+        }
+    }
+
+    /**
+     * Deletes acknowledged messages in batches of up to ten, a partial batch is sent rather than held back.
+     */
+    private void flushAcks() {
+        List<Message> batch = new ArrayList<>(MAX_RECEIVE);
+        Message message;
+        while ((message = acks.poll()) != null) {
+            batch.add(message);
+            if (batch.size() == MAX_RECEIVE) {
+                delete(batch);
+                batch = new ArrayList<>(MAX_RECEIVE);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            delete(batch);
+        }
+    }
+
+    private void delete(List<Message> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        Map<String, Message> byId = new HashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String id = Integer.toString(i);
+            entries.add(new DeleteMessageBatchRequestEntry(id, batch.get(i).getReceiptHandle()));
+            byId.put(id, batch.get(i));
+        }
+
+        DeleteMessageBatchResult result;
+        try {
+            result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queue, entries));
+        } catch (RuntimeException e) {
+            // The messages will be delivered again once their visibility timeout runs out
+            forget(batch);
+            return;
+        }
+
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            inFlight.remove(byId.remove(error.getId()).getReceiptHandle());
+        }
+
+        for (Message deletedMessage : byId.values()) {
+            inFlight.remove(deletedMessage.getReceiptHandle());
+            deleted.increment();
+            try {
+                decoder.release(deletedMessage);
+            } catch (IOException e) {
+                // the payload is orphaned, but the message itself is done
+            }
+        }
+    }
+
+    private void forget(List<Message> batch) {
+        for (Message message : batch) {
+            inFlight.remove(message.getReceiptHandle());
+        }
+    }
+
+    /**
+     * Pushes the visibility timeout out again for every message that is past half of it and still being handled.
+     */
+    private void extendVisibility(long now) {
+        long threshold = TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds) / 2;
+        List<InFlight> due = new ArrayList<>();
+        for (InFlight message : inFlight.values()) {
+            if (message.expiresAt - now <= threshold) {
+                due.add(message);
+            }
+        }
+
+        for (int start = 0; start < due.size(); start += MAX_RECEIVE) {
+            List<InFlight> chunk = due.subList(start, Math.min(due.size(), start + MAX_RECEIVE));
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(Integer.toString(i),
+                        chunk.get(i).message.getReceiptHandle()).withVisibilityTimeout(visibilityTimeoutSeconds));
+            }
+
+            try {
+                sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queue, entries));
+            } catch (RuntimeException e) {
+                continue;
+            }
+
+            long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilityTimeoutSeconds);
+            for (InFlight message : chunk) {
+                message.expiresAt = expiresAt;
+                extended.increment();
+            }
+        }
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getDeleted() {
+        return deleted.sum();
+    }
+
+    public long getExtended() {
+        return extended.sum();
+    }
+
+    public long getReplied() {
+        return replied.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+}
@@ -15,20 +15,49 @@
  */
 package threeguys.polymethods.aws.sqs;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.MessageSystemAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.core.limit.AdaptiveLimiter;
+import threeguys.polymethods.core.limit.TokenBucket;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class SqsPolyMethod implements PolyMethod {
 
     public static final int MAX_MESSAGE_SIZE = 1024 * 255; // fudge factor
 
+    public static final String ENCODING_ATTRIBUTE = "polymethods-encoding";
+    public static final String CLAIM_CHECK_ATTRIBUTE = "polymethods-claim-check";
+    public static final String CONTENT_TYPE_ATTRIBUTE = "polymethods-content-type";
+    public static final String CORRELATION_ID_ATTRIBUTE = "polymethods-correlation-id";
+    public static final String REPLY_TO_ATTRIBUTE = "polymethods-reply-to";
+    public static final String ERROR_ATTRIBUTE = "polymethods-error";
+
+    // With both a codec and a blob store, bodies up to this size are held in memory to see whether they fit once
+    // encoded, anything larger goes straight to the blob store
+    private static final int MAX_CODEC_INPUT = MAX_MESSAGE_SIZE * 16;
+
+    private static final Set<String> THROTTLING_CODES = new HashSet<>(Arrays.asList(
+            "OverLimit", "RequestThrottled", "Throttling", "ThrottlingException", "TooManyRequestsException"));
+
     private String queue;
     private AmazonSQS sqs;
     private ArgumentMapper<String> serializer;
@@ -40,9 +69,25 @@ public class SqsPolyMethod implements PolyMethod {
 
     private SqsResultCreator resultCreator;
 
+    private BodyCodec codec;
+    private int codecThreshold;
+
+    private BlobStore blobStore;
+    private ArgumentWriter writer;
+    private String contentType;
+    private boolean binary;
+
+    private AdaptiveLimiter limiter;
+    private TokenBucket rateLimit;
+    private long maxWaitNanos;
+
     public static ArgumentMapper<String> jsonSerializer() {
-        ObjectMapper mapper = new ObjectMapper();
-        return (in) -> mapper.writer().writeValueAsString(in);
+        ObjectWriter writer = new ObjectMapper().writer();
+        return writer::writeValueAsString;
+    }
+
+    public static ArgumentWriter jsonWriter() {
+        return ArgumentSerializers.json();
     }
 
     public static SqsResultCreator voidResultCreator() {
@@ -84,11 +129,117 @@ public class SqsPolyMethod implements PolyMethod {
         this.delaySeconds = delaySeconds;
     }
 
+    /**
+     * Encodes message bodies of at least {@code threshold} bytes with the given codec, base64 encoded so they remain
+     * valid SQS bodies. The encoded form is only used when it is actually smaller, and is marked with the
+     * {@link #ENCODING_ATTRIBUTE} message attribute, see {@link SqsMessageDecoder}.
+     */
+    public SqsPolyMethod withCodec(BodyCodec codec, int threshold) {
+        if (codec == null) {
+            throw new NullPointerException();
+        }
+
+        this.codec = codec;
+        this.codecThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Streams the arguments through the given serializer into a reusable per-thread buffer, in place of the
+     * {@link ArgumentMapper} serializer. Binary formats are base64 encoded, and any format other than JSON is marked
+     * with the {@link #CONTENT_TYPE_ATTRIBUTE} message attribute.
+     */
+    public SqsPolyMethod withSerializer(ArgumentSerializer serializer) {
+        if (serializer == null) {
+            throw new NullPointerException();
+        }
+
+        useWriter(serializer);
+        return this;
+    }
+
+    /**
+     * Claim check mode: arguments are streamed through the writer, and when the body would exceed
+     * {@link #MAX_MESSAGE_SIZE} the payload goes to the blob store instead. The message then only carries the blob
+     * key, marked by the {@link #CLAIM_CHECK_ATTRIBUTE} message attribute, see {@link SqsMessageDecoder}. The
+     * {@link ArgumentMapper} serializer is not used in this mode. With a codec as well, a body only goes to the blob
+     * store if it is still too large once encoded.
+     */
+    public SqsPolyMethod withClaimCheck(BlobStore blobStore, ArgumentWriter writer) {
+        if (blobStore == null || writer == null) {
+            throw new NullPointerException();
+        }
+
+        this.blobStore = blobStore;
+        useWriter(writer);
+        return this;
+    }
+
+    /**
+     * Claim check mode using the streaming serializer already configured, or JSON if there is none.
+     */
+    public SqsPolyMethod withClaimCheck(BlobStore blobStore) {
+        return withClaimCheck(blobStore, writer == null ? ArgumentSerializers.json() : writer);
+    }
+
+    /**
+     * Paces sends to the queue. The rate limit caps sends per second, the limiter caps concurrent sends and adapts
+     * that cap to send latency and to SQS throttling, see {@link #isThrottling(Throwable)}. Either may be null, and
+     * both may be shared with other methods sending to the same queue. A send waits up to {@code maxWait} for its
+     * turn and is otherwise rejected with a {@link RejectedExecutionException}.
+     */
+    public SqsPolyMethod withLimits(AdaptiveLimiter limiter, TokenBucket rateLimit, long maxWait, TimeUnit unit) {
+        if (unit == null) {
+            throw new NullPointerException();
+        }
+
+        this.limiter = limiter;
+        this.rateLimit = rateLimit;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        return this;
+    }
+
+    /**
+     * @return true if SQS turned a request away because of its request rate
+     */
+    public static boolean isThrottling(Throwable t) {
+        if (!(t instanceof AmazonServiceException)) {
+            return false;
+        }
+
+        AmazonServiceException e = (AmazonServiceException) t;
+        return e.getStatusCode() == 429 || THROTTLING_CODES.contains(e.getErrorCode());
+    }
+
+    private void useWriter(ArgumentWriter writer) {
+        this.writer = writer;
+        if (writer instanceof ArgumentSerializer && !ArgumentSerializers.JSON.equals(((ArgumentSerializer) writer).getContentType())) {
+            this.contentType = ((ArgumentSerializer) writer).getContentType();
+            this.binary = ((ArgumentSerializer) writer).isBinary();
+        } else {
+            this.contentType = null;
+            this.binary = false;
+        }
+    }
+
     @Override
     public Object handle(Object[] args) throws Throwable {
+        SendMessageRequest request = createRequest(args);
+
+        SendMessageResult result;
+        try {
+            result = sendLimited(request);
+        } catch (Throwable t) {
+            releaseClaim(request);
+            throw t;
+        }
+
+        return resultCreator.results(args, request, result);
+    }
+
+    protected SendMessageRequest createRequest(Object[] args) throws Throwable {
         SendMessageRequest request = new SendMessageRequest()
-                .withQueueUrl(queue)
-                .withMessageBody(serializer.map(args));
+                .withQueueUrl(queue);
 
         if (dedup != null) {
             request.withMessageDeduplicationId(dedup.map(args));
@@ -110,8 +261,218 @@ public class SqsPolyMethod implements PolyMethod {
             request.withMessageSystemAttributes(systemAttributes.map(args));
         }
 
-        SendMessageResult result = sqs.sendMessage(request);
-        return resultCreator.results(args, request, result);
+        if (writer != null) {
+            writeBody(request, args);
+        } else {
+            mapBody(request, args);
+        }
+
+        int size = sizeOf(request);
+        if (size > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message of " + size + " bytes exceeds the maximum of "
+                    + MAX_MESSAGE_SIZE + " bytes for queue: " + queue);
+        }
+
+        return request;
+    }
+
+    private void mapBody(SendMessageRequest request, Object[] args) throws Throwable {
+        String body = serializer.map(args);
+        if (codec != null) {
+            byte [] raw = body.getBytes(StandardCharsets.UTF_8);
+            if (encodeBody(request, raw, raw.length, body.length(), Integer.MAX_VALUE)) {
+                return;
+            }
+        }
+        request.withMessageBody(body);
+    }
+
+    private void writeBody(SendMessageRequest request, Object[] args) throws Throwable {
+        if (contentType != null) {
+            addAttribute(request, CONTENT_TYPE_ATTRIBUTE, contentType);
+        }
+
+        int room = MAX_MESSAGE_SIZE - sizeOf(request);
+        // Base64 makes binary bodies 4/3 larger on the wire
+        int rawRoom = binary ? (room / 4) * 3 : room;
+
+        // With a codec the raw body may still shrink enough to fit, so only the codec output is checked
+        int limit = codec == null ? rawRoom
+                : blobStore == null ? Integer.MAX_VALUE
+                : Math.max(rawRoom, MAX_CODEC_INPUT);
+        int encodedRoom = codec == null || blobStore == null ? Integer.MAX_VALUE
+                : room - attributeSize(ENCODING_ATTRIBUTE, codec.getName());
+        BodyBuffer body = BodyBuffer.acquire(limit, blobStore);
+
+        try {
+            try {
+                writer.write(args, body);
+                body.close();
+            } catch (Throwable t) {
+                body.discard();
+                throw t;
+            }
+
+            if (!body.isSpilled() && (codec == null || !encodeBody(request, body.array(), body.size(),
+                    binary ? (body.size() + 2) / 3 * 4 : body.size(), encodedRoom))) {
+                if (body.size() > rawRoom && blobStore != null) {
+                    // Held back for the codec, but too large even encoded
+                    body.moveToStore();
+                } else {
+                    request.withMessageBody(binary ? body.toBase64() : body.toUtf8());
+                }
+            }
+
+            if (body.isSpilled()) {
+                request.withMessageBody(body.getKey());
+                addAttribute(request, CLAIM_CHECK_ATTRIBUTE, body.getKey());
+            }
+
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Compresses the raw body with the codec when it is over the threshold and the encoded result is smaller than
+     * the plain body would be on the wire, and no larger than {@code maxSize}.
+     */
+    private boolean encodeBody(SendMessageRequest request, byte [] raw, int length, int plainSize, int maxSize)
+            throws IOException {
+        if (length < codecThreshold) {
+            return false;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 2);
+        try (OutputStream out = codec.encode(buffer)) {
+            out.write(raw, 0, length);
+        }
+
+        String encoded = Base64.getEncoder().encodeToString(buffer.toByteArray());
+        if (encoded.length() >= plainSize || encoded.length() > maxSize) {
+            return false;
+        }
+
+        request.withMessageBody(encoded);
+        addAttribute(request, ENCODING_ATTRIBUTE, codec.getName());
+        return true;
+    }
+
+    void releaseClaim(SendMessageRequest request) {
+        MessageAttributeValue claim = request.getMessageAttributes().get(CLAIM_CHECK_ATTRIBUTE);
+        if (claim != null && blobStore != null) {
+            try {
+                blobStore.delete(claim.getStringValue());
+            } catch (IOException e) {
+                // best effort, the blob is orphaned either way
+            }
+        }
+    }
+
+    static void addAttribute(SendMessageRequest request, String name, String value) {
+        // Never mutate the map handed out by the attributes mapper
+        Map<String, MessageAttributeValue> attrs = new HashMap<>(request.getMessageAttributes());
+        attrs.put(name, new MessageAttributeValue()
+                .withDataType("String")
+                .withStringValue(value));
+        request.withMessageAttributes(attrs);
+    }
+
+    private static int attributeSize(String name, String value) {
+        return utf8Length(name) + utf8Length("String") + utf8Length(value);
+    }
+
+    /**
+     * Size of the message as SQS counts it against the limit: the body plus the name, type and value of every
+     * message attribute.
+     */
+    static int sizeOf(SendMessageRequest request) {
+        int size = utf8Length(request.getMessageBody());
+        for (Map.Entry<String, MessageAttributeValue> attribute : request.getMessageAttributes().entrySet()) {
+            MessageAttributeValue value = attribute.getValue();
+            size += utf8Length(attribute.getKey()) + utf8Length(value.getDataType()) + utf8Length(value.getStringValue());
+            if (value.getBinaryValue() != null) {
+                size += value.getBinaryValue().remaining();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return length of the value in UTF-8, without encoding it
+     */
+    public static int utf8Length(CharSequence value) {
+        if (value == null) {
+            return 0;
+        }
+
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Sends the request under the limits set with {@link #withLimits}, if any.
+     */
+    protected SendMessageResult sendLimited(SendMessageRequest request) throws Throwable {
+        if (limiter == null && rateLimit == null) {
+            return send(request);
+        }
+
+        long deadline = System.nanoTime() + maxWaitNanos;
+        if (rateLimit != null && !rateLimit.acquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+            throw new RejectedExecutionException("Rate limit reached for queue: " + queue);
+        }
+
+        if (limiter == null) {
+            return send(request);
+        }
+
+        AdaptiveLimiter.Permit permit = limiter.acquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (permit == null) {
+            if (rateLimit != null) {
+                rateLimit.refund();
+            }
+            throw new RejectedExecutionException("Concurrency limit of " + limiter.getLimit()
+                    + " reached for queue: " + queue);
+        }
+
+        try {
+            SendMessageResult result = send(request);
+            permit.success();
+            return result;
+        } catch (Throwable t) {
+            if (isThrottling(t)) {
+                permit.dropped();
+            } else {
+                permit.ignore();
+            }
+            throw t;
+        }
+    }
+
+    protected SendMessageResult send(SendMessageRequest request) throws Throwable {
+        return sqs.sendMessage(request);
+    }
+
+    protected String getQueue() {
+        return queue;
+    }
+
+    protected AmazonSQS getSqs() {
+        return sqs;
     }
 
 }
@@ -0,0 +1,38 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+/**
+ * Failure reported in a reply by the {@link SqsPolyDispatcher} that handled a request. The remote exception itself
+ * is not sent back, only its class name and message.
+ */
+public class SqsRemoteException extends RuntimeException {
+
+    private final String remoteType;
+
+    public SqsRemoteException(String remoteType, String message) {
+        super(remoteType + ": " + message);
+        this.remoteType = remoteType;
+    }
+
+    /**
+     * @return class name of the exception thrown by the remote method
+     */
+    public String getRemoteType() {
+        return remoteType;
+    }
+
+}
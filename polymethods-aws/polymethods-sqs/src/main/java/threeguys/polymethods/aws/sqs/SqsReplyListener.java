@@ -0,0 +1,255 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import threeguys.polymethods.core.timer.HashedWheelTimer;
+import threeguys.polymethods.core.timer.Timeout;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Receives the replies for {@link RequestReplySqsPolyMethod} calls. A single thread long polls the reply queue in
+ * batches and completes the future registered under each reply's {@link SqsPolyMethod#CORRELATION_ID_ATTRIBUTE}, so
+ * one listener can serve any number of outstanding calls and any number of methods sharing the reply queue.
+ * <p>
+ * Every call is registered with a timeout on a {@link HashedWheelTimer}. Calls that time out are dropped from the
+ * correlation map, and replies that arrive for them later, or for calls made by an earlier process, are deleted
+ * and counted as orphans.
+ */
+public class SqsReplyListener implements AutoCloseable {
+
+    private static final int MAX_RECEIVE = SqsPolyDispatcher.MAX_RECEIVE;
+
+    private final String queue;
+    private final AmazonSQS sqs;
+    private final SqsMessageDecoder decoder;
+    private final HashedWheelTimer timer;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Thread poller;
+
+    private volatile boolean running = true;
+
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder orphans = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private static final class Pending {
+        final Type type;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        Timeout timeout;
+
+        Pending(Type type) {
+            this.type = type;
+        }
+    }
+
+    public SqsReplyListener(String queue, AmazonSQS sqs) {
+        this(queue, sqs, new SqsMessageDecoder(), HashedWheelTimer.shared());
+    }
+
+    public SqsReplyListener(String queue, AmazonSQS sqs, SqsMessageDecoder decoder, HashedWheelTimer timer) {
+        if (queue == null || sqs == null || decoder == null || timer == null) {
+            throw new NullPointerException();
+        }
+
+        this.queue = queue;
+        this.sqs = sqs;
+        this.decoder = decoder;
+        this.timer = timer;
+        this.poller = new Thread(this::pollLoop, "polymethods-sqs-replies-" + queue);
+        this.poller.setDaemon(true);
+        this.poller.start();
+    }
+
+    /**
+     * @return URL of the reply queue, sent along with each request
+     */
+    public String getQueue() {
+        return queue;
+    }
+
+    /**
+     * Registers a call before its request is sent. The future completes with the reply deserialized as
+     * {@code type}, with a {@link SqsRemoteException} if the remote method failed, or with a
+     * {@link TimeoutException} if no reply arrives in time.
+     */
+    public CompletableFuture<Object> register(String correlationId, Type type, long timeout, TimeUnit unit) {
+        if (correlationId == null || type == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        if (!running) {
+            throw new IllegalStateException("Reply listener is closed for queue: " + queue);
+        }
+
+        Pending call = new Pending(type);
+        if (pending.putIfAbsent(correlationId, call) != null) {
+            throw new IllegalArgumentException("Duplicate correlation id: " + correlationId);
+        }
+
+        call.timeout = timer.newTimeout(() -> {
+            if (pending.remove(correlationId, call)) {
+                timedOut.increment();
+                call.future.completeExceptionally(new TimeoutException("No reply to " + correlationId
+                        + " after " + timeout + " " + unit));
+            }
+        }, timeout, unit);
+
+        // Also covers the caller cancelling the future
+        call.future.whenComplete((value, failure) -> {
+            pending.remove(correlationId, call);
+            call.timeout.cancel();
+        });
+        return call.future;
+    }
+
+    /**
+     * Fails a registered call whose request could not be sent.
+     */
+    public void cancel(String correlationId, Throwable failure) {
+        Pending call = pending.remove(correlationId);
+        if (call != null) {
+            call.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Stops polling and fails any call still waiting for its reply.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        poller.interrupt();
+        poller.join();
+
+        IllegalStateException failure = new IllegalStateException("Reply listener is closed for queue: " + queue);
+        for (String correlationId : pending.keySet()) {
+            cancel(correlationId, failure);
+        }
+    }
+
+    private void pollLoop() {
+        while (running) {
+            List<Message> messages;
+            try {
+                messages = sqs.receiveMessage(new ReceiveMessageRequest(queue)
+                        .withMaxNumberOfMessages(MAX_RECEIVE)
+                        .withWaitTimeSeconds(SqsPolyDispatcher.MAX_WAIT_SECONDS)
+                        .withMessageAttributeNames("All")).getMessages();
+            } catch (RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+
+            if (messages.isEmpty()) {
+                continue;
+            }
+
+            for (Message message : messages) {
+                complete(message);
+            }
+            delete(messages);
+        }
+    }
+
+    private void complete(Message message) {
+        String correlationId = attribute(message, SqsPolyMethod.CORRELATION_ID_ATTRIBUTE);
+        Pending call = correlationId == null ? null : pending.remove(correlationId);
+        if (call == null) {
+            orphans.increment();
+            return;
+        }
+
+        replies.increment();
+        try {
+            String error = attribute(message, SqsPolyMethod.ERROR_ATTRIBUTE);
+            if (error != null) {
+                Object errorMessage = decoder.readArguments(message, new Type[] { String.class })[0];
+                call.future.completeExceptionally(new SqsRemoteException(error, (String) errorMessage));
+            } else {
+                call.future.complete(decoder.readArguments(message, new Type[] { call.type })[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            call.future.completeExceptionally(e);
+        }
+    }
+
+    static String attribute(Message message, String name) {
+        MessageAttributeValue value = message.getMessageAttributes().get(name);
+        return value == null ? null : value.getStringValue();
+    }
+
+    private void delete(List<Message> messages) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), messages.get(i).getReceiptHandle()));
+        }
+
+        try {
+            sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queue, entries));
+        } catch (RuntimeException e) {
+            // Replies that come back again are orphans by then and get deleted on the next pass
+            return;
+        }
+
+        for (Message message : messages) {
+            try {
+                decoder.release(message);
+            } catch (IOException e) {
+                // the payload is orphaned, the reply was already delivered
+            }
+        }
+    }
+
+    public int getPending() {
+        return pending.size();
+    }
+
+    public long getReplies() {
+        return replies.sum();
+    }
+
+    public long getOrphans() {
+        return orphans.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+}
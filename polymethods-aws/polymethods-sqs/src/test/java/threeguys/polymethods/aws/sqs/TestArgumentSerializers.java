@@ -0,0 +1,139 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TestArgumentSerializers {
+
+    // Stand-in for the parameter types of a target method: (Map<String, Integer>, String, long)
+    @SuppressWarnings("unused")
+    private static void target(Map<String, Integer> map, String string, long number) {
+    }
+
+    private static Type [] targetTypes() throws NoSuchMethodException {
+        return TestArgumentSerializers.class
+                .getDeclaredMethod("target", Map.class, String.class, long.class)
+                .getGenericParameterTypes();
+    }
+
+    private static List<SendMessageRequest> send(SqsPolyMethod method, AmazonSQS sqs, Object[]... calls) throws Throwable {
+        for (Object[] args : calls) {
+            method.handle(args);
+        }
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(calls.length)).sendMessage(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static Message toMessage(SendMessageRequest request) {
+        return new Message()
+                .withBody(request.getMessageBody())
+                .withMessageAttributes(request.getMessageAttributes());
+    }
+
+    @Test
+    public void roundTrip() throws Throwable {
+        Map<String, Integer> map = new HashMap<>();
+        map.put("answer", 42);
+
+        char [] chars = new char[8192];
+        Arrays.fill(chars, 'q');
+        Object[] large = new Object[]{ map, new String(chars), 7L };
+        Object[] small = new Object[]{ map, "small", 13L };
+
+        for (ArgumentSerializer serializer : new ArgumentSerializer[]{
+                ArgumentSerializers.json(), ArgumentSerializers.smile(), ArgumentSerializers.cbor() }) {
+
+            AmazonSQS sqs = mock(AmazonSQS.class);
+            when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+            SqsPolyMethod method = new SqsPolyMethod("format-queue", sqs).withSerializer(serializer);
+
+            // large then small checks nothing leaks from the reused buffer into the next body
+            List<SendMessageRequest> requests = send(method, sqs, large, small);
+            SqsMessageDecoder decoder = new SqsMessageDecoder();
+
+            assertArrayEquals(large, decoder.readArguments(toMessage(requests.get(0)), targetTypes()));
+            assertArrayEquals(small, decoder.readArguments(toMessage(requests.get(1)), targetTypes()));
+
+            MessageAttributeValue contentType = requests.get(1).getMessageAttributes().get(SqsPolyMethod.CONTENT_TYPE_ATTRIBUTE);
+            if (serializer.isBinary()) {
+                assertEquals(serializer.getContentType(), contentType.getStringValue());
+            } else {
+                assertEquals(null, contentType);
+                assertEquals("[{\"answer\":42},\"small\",13]", requests.get(1).getMessageBody());
+            }
+        }
+    }
+
+    @Test
+    public void binaryWithCodec() throws Throwable {
+        char [] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'c');
+        Object[] args = new Object[]{ new HashMap<String, Integer>(), new String(chars), 1L };
+
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+        SqsPolyMethod method = new SqsPolyMethod("format-queue", sqs)
+                .withSerializer(ArgumentSerializers.smile())
+                .withCodec(BodyCodecs.gzip(), 1024);
+
+        SendMessageRequest request = send(method, sqs, args).get(0);
+        assertEquals(BodyCodecs.GZIP, request.getMessageAttributes().get(SqsPolyMethod.ENCODING_ATTRIBUTE).getStringValue());
+        assertArrayEquals(args, new SqsMessageDecoder().readArguments(toMessage(request), targetTypes()));
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongArity() throws Throwable {
+        new SqsMessageDecoder().readArguments(new Message().withBody("[{}, \"one\"]"), targetTypes());
+    }
+
+    @Test
+    public void legacyMapperIsUnchanged() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+        SqsPolyMethod method = new SqsPolyMethod("format-queue", sqs,
+                (args) -> "custom:" + args.length, null, null, null, null, null, SqsPolyMethod.voidResultCreator());
+
+        SendMessageRequest request = send(method, sqs, new Object[]{ 1, 2 }).get(0);
+        assertEquals("custom:2", request.getMessageBody());
+        assertFalse(request.getMessageAttributes().containsKey(SqsPolyMethod.CONTENT_TYPE_ATTRIBUTE));
+    }
+
+}
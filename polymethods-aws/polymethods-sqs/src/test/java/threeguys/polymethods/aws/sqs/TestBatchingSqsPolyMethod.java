@@ -0,0 +1,172 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestBatchingSqsPolyMethod {
+
+    private static AmazonSQS batchingSqs(List<SendMessageBatchRequest> requests, String failBody) {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer((invocation) -> {
+            SendMessageBatchRequest request = invocation.getArgument(0);
+            requests.add(request);
+
+            SendMessageBatchResult result = new SendMessageBatchResult();
+            for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                if (entry.getMessageBody().equals(failBody)) {
+                    result.withFailed(new BatchResultErrorEntry()
+                            .withId(entry.getId())
+                            .withCode("InvalidMessageContents")
+                            .withMessage("bad body")
+                            .withSenderFault(true));
+                } else {
+                    result.withSuccessful(new SendMessageBatchResultEntry()
+                            .withId(entry.getId())
+                            .withMessageId("id:" + entry.getMessageBody()));
+                }
+            }
+            return result;
+        });
+        return sqs;
+    }
+
+    @Test
+    public void coalescesConcurrentCalls() throws Throwable {
+        List<SendMessageBatchRequest> requests = Collections.synchronizedList(new ArrayList<>());
+        AmazonSQS sqs = batchingSqs(requests, null);
+
+        ExecutorService callers = Executors.newFixedThreadPool(25);
+        try (BatchingSqsPolyMethod method = new BatchingSqsPolyMethod("batch-queue", sqs,
+                SqsPolyMethod.jsonSerializer(), null, null, null, null, null,
+                (args, request, result) -> result.getMessageId(),
+                200, TimeUnit.MILLISECONDS, Runnable::run)) {
+
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                final int value = i;
+                results.add(callers.submit(() -> {
+                    try {
+                        return method.handle(new Object[]{ value });
+                    } catch (Throwable t) {
+                        throw new IllegalStateException(t);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < 25; i++) {
+                assertEquals("id:[" + i + "]", results.get(i).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        int entries = 0;
+        for (SendMessageBatchRequest request : requests) {
+            assertEquals("batch-queue", request.getQueueUrl());
+            assertTrue(request.getEntries().size() <= BatchingSqsPolyMethod.MAX_BATCH_ENTRIES);
+            entries += request.getEntries().size();
+        }
+        assertEquals(25, entries);
+        assertTrue("Expected coalescing, got " + requests.size() + " batches", requests.size() < 25);
+    }
+
+    @Test
+    public void respectsBatchSize() throws Throwable {
+        List<SendMessageBatchRequest> requests = Collections.synchronizedList(new ArrayList<>());
+        AmazonSQS sqs = batchingSqs(requests, null);
+
+        char [] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+
+        ExecutorService callers = Executors.newFixedThreadPool(5);
+        try (BatchingSqsPolyMethod method = new BatchingSqsPolyMethod("batch-queue", sqs, 200, TimeUnit.MILLISECONDS)) {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                results.add(callers.submit(() -> {
+                    try {
+                        return method.handle(new Object[]{ big });
+                    } catch (Throwable t) {
+                        throw new IllegalStateException(t);
+                    }
+                }));
+            }
+
+            for (Future<Object> result : results) {
+                result.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        for (SendMessageBatchRequest request : requests) {
+            int size = 0;
+            for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                size += entry.getMessageBody().length();
+            }
+            assertTrue(size <= BatchingSqsPolyMethod.MAX_BATCH_SIZE);
+        }
+        assertTrue(requests.size() >= 3);
+    }
+
+    @Test
+    public void failedEntry() throws Throwable {
+        List<SendMessageBatchRequest> requests = Collections.synchronizedList(new ArrayList<>());
+        AmazonSQS sqs = batchingSqs(requests, "[\"bad\"]");
+
+        try (BatchingSqsPolyMethod method = new BatchingSqsPolyMethod("batch-queue", sqs, 0, TimeUnit.MILLISECONDS)) {
+            method.handle(new Object[]{ "good" });
+            try {
+                method.handle(new Object[]{ "bad" });
+                fail("Expected the failed entry to throw");
+            } catch (AmazonSQSException e) {
+                assertEquals("InvalidMessageContents", e.getErrorCode());
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed() throws Throwable {
+        BatchingSqsPolyMethod method = new BatchingSqsPolyMethod("batch-queue", mock(AmazonSQS.class), 0, TimeUnit.MILLISECONDS);
+        method.close();
+        method.handle(new Object[]{ "too late" });
+    }
+
+}
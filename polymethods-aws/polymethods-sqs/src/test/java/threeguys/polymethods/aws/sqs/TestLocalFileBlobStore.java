@@ -0,0 +1,84 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class TestLocalFileBlobStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte [] readAll(InputStream in) throws IOException {
+        byte [] buffer = new byte[64];
+        int count = 0;
+        int read;
+        while ((read = in.read(buffer, count, buffer.length - count)) != -1) {
+            count += read;
+        }
+        byte [] result = new byte[count];
+        System.arraycopy(buffer, 0, result, 0, count);
+        return result;
+    }
+
+    @Test
+    public void happyCase() throws IOException {
+        LocalFileBlobStore store = new LocalFileBlobStore(folder.getRoot().toPath().resolve("blobs"));
+        byte [] payload = "a payload".getBytes(StandardCharsets.UTF_8);
+
+        try (OutputStream out = store.create("some-key")) {
+            out.write(payload);
+
+            try {
+                store.open("some-key");
+                fail("Blob must not be visible before it is closed");
+            } catch (NoSuchFileException e) {
+                // expected
+            }
+        }
+
+        try (InputStream in = store.open("some-key")) {
+            assertArrayEquals(payload, readAll(in));
+        }
+
+        store.delete("some-key");
+        store.delete("some-key");
+
+        try {
+            store.open("some-key");
+            fail("Blob should have been deleted");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void escapingKey() throws IOException {
+        new LocalFileBlobStore(folder.getRoot().toPath()).open("../outside");
+    }
+
+}
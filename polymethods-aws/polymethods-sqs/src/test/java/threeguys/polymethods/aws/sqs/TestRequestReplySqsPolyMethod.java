@@ -0,0 +1,342 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.junit.Test;
+import threeguys.polymethods.core.limit.AdaptiveLimiter;
+import threeguys.polymethods.core.limit.TokenBucket;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestRequestReplySqsPolyMethod {
+
+    private static final Type[] TYPES = new Type[] { Integer.class, Integer.class };
+
+    public interface Calculator {
+        CompletableFuture<Integer> add(int a, int b);
+        long subtract(int a, int b);
+    }
+
+    /**
+     * Mock SQS holding any number of in memory queues, keyed by URL.
+     */
+    private static AmazonSQS queues(Map<String, BlockingQueue<Message>> queues) {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        AtomicInteger ids = new AtomicInteger();
+
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenAnswer((invocation) -> {
+            SendMessageRequest request = invocation.getArgument(0);
+            String id = Integer.toString(ids.incrementAndGet());
+            queues.computeIfAbsent(request.getQueueUrl(), (url) -> new LinkedBlockingQueue<>()).add(new Message()
+                    .withMessageId(id)
+                    .withReceiptHandle("receipt-" + id)
+                    .withBody(request.getMessageBody())
+                    .withMessageAttributes(request.getMessageAttributes()));
+            return new SendMessageResult().withMessageId(id);
+        });
+
+        when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer((invocation) -> {
+            ReceiveMessageRequest request = invocation.getArgument(0);
+            BlockingQueue<Message> messages = queues.computeIfAbsent(request.getQueueUrl(),
+                    (url) -> new LinkedBlockingQueue<>());
+
+            List<Message> received = new ArrayList<>();
+            Message first;
+            try {
+                first = messages.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // What the SDK throws when a request thread is interrupted
+                throw new AbortedException();
+            }
+            if (first != null) {
+                received.add(first);
+                messages.drainTo(received, request.getMaxNumberOfMessages() - 1);
+            }
+            return new ReceiveMessageResult().withMessages(received);
+        });
+
+        when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenAnswer((invocation) -> {
+            DeleteMessageBatchRequest request = invocation.getArgument(0);
+            DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+            for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            }
+            return result;
+        });
+
+        return sqs;
+    }
+
+    @Test
+    public void resultType() throws Exception {
+        assertEquals(Integer.class, RequestReplySqsPolyMethod.resultType(
+                Calculator.class.getMethod("add", int.class, int.class)));
+        assertEquals(long.class, RequestReplySqsPolyMethod.resultType(
+                Calculator.class.getMethod("subtract", int.class, int.class)));
+    }
+
+    @Test
+    public void manyOutstandingCalls() throws Throwable {
+        Map<String, BlockingQueue<Message>> messages = new ConcurrentHashMap<>();
+        AmazonSQS sqs = queues(messages);
+
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs);
+             SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("requests", sqs,
+                     (args) -> (Integer) args[0] + (Integer) args[1], TYPES)
+                     .withConcurrency(2, 8, 40).start()) {
+
+            RequestReplySqsPolyMethod method = RequestReplySqsPolyMethod.forMethod("requests", sqs, replies,
+                    Calculator.class.getMethod("add", int.class, int.class), 10, TimeUnit.SECONDS);
+
+            List<CompletableFuture<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(method.handleAsync(new Object[] { i, i }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i * 2, futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+
+            assertEquals(1000, replies.getReplies());
+            assertEquals(0, replies.getPending());
+            assertEquals(0, replies.getOrphans());
+            assertEquals(6, method.handle(new Object[] { 2, 4 }));
+
+            // Counted after the reply is sent, so only settled once the workers are done
+            dispatcher.close();
+            assertEquals(1001, dispatcher.getReplied());
+        }
+    }
+
+    @Test
+    public void remoteFailure() throws Throwable {
+        Map<String, BlockingQueue<Message>> messages = new ConcurrentHashMap<>();
+        AmazonSQS sqs = queues(messages);
+
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs);
+             SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("requests", sqs, (args) -> {
+                 throw new ArithmeticException("overflow");
+             }, TYPES).start()) {
+
+            RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                    Integer.class, 10, TimeUnit.SECONDS);
+
+            try {
+                method.handle(new Object[] { 1, 2 });
+                fail("Should have thrown");
+            } catch (SqsRemoteException e) {
+                assertEquals(ArithmeticException.class.getName(), e.getRemoteType());
+                assertTrue(e.getMessage().contains("overflow"));
+            }
+
+            dispatcher.close();
+            assertEquals(1, dispatcher.getFailed());
+            assertEquals(1, dispatcher.getReplied());
+        }
+    }
+
+    @Test
+    public void resultTooLarge() throws Throwable {
+        Map<String, BlockingQueue<Message>> messages = new ConcurrentHashMap<>();
+        AmazonSQS sqs = queues(messages);
+
+        char[] result = new char[SqsPolyMethod.MAX_MESSAGE_SIZE];
+        Arrays.fill(result, 'r');
+
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs);
+             SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("requests", sqs,
+                     (args) -> new String(result), TYPES).start()) {
+
+            RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                    String.class, 10, TimeUnit.SECONDS);
+
+            try {
+                method.handle(new Object[] { 1, 2 });
+                fail("Should have thrown");
+            } catch (SqsRemoteException e) {
+                assertEquals(IllegalStateException.class.getName(), e.getRemoteType());
+                assertTrue(e.getMessage().contains("too large"));
+            }
+
+            // Answered, so the request is not retried
+            dispatcher.close();
+            assertEquals(1, dispatcher.getFailed());
+            assertEquals(1, dispatcher.getReplied());
+            assertEquals(1, dispatcher.getDeleted());
+        }
+    }
+
+    @Test
+    public void missingCorrelationId() throws Throwable {
+        Map<String, BlockingQueue<Message>> messages = new ConcurrentHashMap<>();
+        AmazonSQS sqs = queues(messages);
+
+        AtomicInteger calls = new AtomicInteger();
+        try (SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("requests", sqs, (args) -> {
+            calls.incrementAndGet();
+            return 0;
+        }, TYPES).start()) {
+
+            sqs.sendMessage(new SendMessageRequest("requests", "[1,2]").addMessageAttributesEntry(
+                    SqsPolyMethod.REPLY_TO_ATTRIBUTE,
+                    new MessageAttributeValue().withDataType("String").withStringValue("replies")));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dispatcher.getFailed() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, dispatcher.getFailed());
+            assertEquals(0, calls.get());
+            assertEquals(0, dispatcher.getReplied());
+            assertTrue(!messages.containsKey("replies") || messages.get("replies").isEmpty());
+        }
+    }
+
+    @Test
+    public void rateLimited() throws Throwable {
+        AmazonSQS sqs = queues(new ConcurrentHashMap<>());
+        TokenBucket bucket = new TokenBucket(1, 1);
+
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs)) {
+            RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                    Integer.class, 10, TimeUnit.SECONDS);
+            method.withLimits(null, bucket, 0, TimeUnit.MILLISECONDS);
+
+            method.handleAsync(new Object[] { 1, 2 });
+            CompletableFuture<?> rejected = method.handleAsync(new Object[] { 3, 4 });
+            try {
+                rejected.get(5, TimeUnit.SECONDS);
+                fail("Should have been rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(1, bucket.getRejected());
+            assertEquals(1, replies.getPending());
+        }
+    }
+
+    @Test
+    public void throttlingShrinksLimit() throws Throwable {
+        AmazonSQS sqs = queues(new ConcurrentHashMap<>());
+        AmazonSQSException throttled = new AmazonSQSException("Rate exceeded");
+        throttled.setErrorCode("RequestThrottled");
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenThrow(throttled);
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100);
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs)) {
+            RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                    Integer.class, 10, TimeUnit.SECONDS);
+            method.withLimits(limiter, null, 0, TimeUnit.MILLISECONDS);
+
+            CompletableFuture<?> future = method.handleAsync(new Object[] { 1, 2 });
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AmazonSQSException);
+            }
+            assertEquals(1, limiter.getDropped());
+            assertEquals(0, limiter.getInFlight());
+        }
+    }
+
+    @Test
+    public void timeoutAndOrphans() throws Throwable {
+        Map<String, BlockingQueue<Message>> messages = new ConcurrentHashMap<>();
+        AmazonSQS sqs = queues(messages);
+
+        try (SqsReplyListener replies = new SqsReplyListener("replies", sqs)) {
+            RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                    Integer.class, 100, TimeUnit.MILLISECONDS);
+
+            CompletableFuture<?> future = method.handleAsync(new Object[] { 1, 2 });
+            assertEquals(1, replies.getPending());
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(0, replies.getPending());
+            assertEquals(1, replies.getTimedOut());
+
+            // Handled late, the reply no longer has anyone waiting for it
+            try (SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("requests", sqs,
+                    (args) -> (Integer) args[0] + (Integer) args[1], TYPES).start()) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (replies.getOrphans() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+
+            assertEquals(1, replies.getOrphans());
+            assertEquals(0, replies.getReplies());
+        }
+    }
+
+    @Test
+    public void closeFailsPendingCalls() throws Throwable {
+        AmazonSQS sqs = queues(new ConcurrentHashMap<>());
+        SqsReplyListener replies = new SqsReplyListener("replies", sqs);
+        RequestReplySqsPolyMethod method = new RequestReplySqsPolyMethod("requests", sqs, replies,
+                Integer.class, 10, TimeUnit.SECONDS);
+
+        CompletableFuture<?> future = method.handleAsync(new Object[] { 1, 2 });
+        replies.close();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,368 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import threeguys.polymethods.core.limit.AdaptiveLimiter;
+import threeguys.polymethods.core.limit.TokenBucket;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestSqsOutbox {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records every entry that was accepted, after throwing {@code throttled} times. Bodies starting with "bad" are
+     * rejected as the sender's fault.
+     */
+    private static AmazonSQS sqs(List<SendMessageBatchRequestEntry> accepted, int throttled) {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        AtomicInteger calls = new AtomicInteger();
+        when(sqs.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer((invocation) -> {
+            if (calls.incrementAndGet() <= throttled) {
+                AmazonSQSException e = new AmazonSQSException("Rate exceeded");
+                e.setErrorCode("RequestThrottled");
+                e.setErrorType(AmazonServiceException.ErrorType.Client);
+                throw e;
+            }
+
+            SendMessageBatchRequest request = invocation.getArgument(0);
+            if (request.getQueueUrl().equals("missing-queue")) {
+                QueueDoesNotExistException e = new QueueDoesNotExistException("The specified queue does not exist");
+                e.setErrorCode("AWS.SimpleQueueService.NonExistentQueue");
+                e.setErrorType(AmazonServiceException.ErrorType.Client);
+                e.setStatusCode(400);
+                throw e;
+            }
+
+            assertTrue(request.getEntries().size() <= BatchingSqsPolyMethod.MAX_BATCH_ENTRIES);
+
+            SendMessageBatchResult result = new SendMessageBatchResult();
+            for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+                if (entry.getMessageBody().startsWith("[\"bad")) {
+                    result.withFailed(new BatchResultErrorEntry().withId(entry.getId())
+                            .withCode("InvalidMessageContents").withSenderFault(true));
+                } else {
+                    accepted.add(entry);
+                    result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId()));
+                }
+            }
+            return result;
+        });
+        return sqs;
+    }
+
+    private static AmazonSQS unreachable() {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessageBatch(any(SendMessageBatchRequest.class)))
+                .thenThrow(new com.amazonaws.SdkClientException("Unable to execute HTTP request"));
+        return sqs;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<String> bodies(List<SendMessageBatchRequestEntry> entries) {
+        synchronized (entries) {
+            return entries.stream().map(SendMessageBatchRequestEntry::getMessageBody).collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> expected(int from, int to) {
+        List<String> bodies = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            bodies.add("[\"message-" + i + "\"]");
+        }
+        return bodies;
+    }
+
+    private static List<String> deadLetterBodies(Path directory) throws Exception {
+        return SqsOutbox.readDeadLetters(directory).stream().map(SendMessageRequest::getMessageBody)
+                .collect(Collectors.toList());
+    }
+
+    private static long segmentFiles(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter((path) -> path.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    private static SqsPolyMethod method(SqsOutbox outbox) {
+        return method(outbox, "outbox-queue");
+    }
+
+    private static SqsPolyMethod method(SqsOutbox outbox, String queue) {
+        return new OutboxSqsPolyMethod(queue, SqsPolyMethod.jsonSerializer(), null, null, null, null, null,
+                (args, request, result) -> result.getMessageId(), outbox);
+    }
+
+    @Test
+    public void recordRoundTrip() throws Exception {
+        SendMessageRequest request = new SendMessageRequest("queue-url", "body")
+                .withMessageGroupId("group")
+                .withMessageDeduplicationId("dedup")
+                .withDelaySeconds(3)
+                .addMessageAttributesEntry("text", new MessageAttributeValue().withDataType("String").withStringValue("v"))
+                .addMessageAttributesEntry("bin", new MessageAttributeValue().withDataType("Binary")
+                        .withBinaryValue(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+
+        SendMessageRequest decoded = SqsOutbox.decode(SqsOutbox.encode(request));
+        assertEquals(request.getQueueUrl(), decoded.getQueueUrl());
+        assertEquals(request.getMessageBody(), decoded.getMessageBody());
+        assertEquals("group", decoded.getMessageGroupId());
+        assertEquals("dedup", decoded.getMessageDeduplicationId());
+        assertEquals(Integer.valueOf(3), decoded.getDelaySeconds());
+        assertEquals("v", decoded.getMessageAttributes().get("text").getStringValue());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, decoded.getMessageAttributes().get("bin").getBinaryValue().array());
+    }
+
+    @Test
+    public void acknowledgesAndDrainsInOrder() throws Throwable {
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs(accepted, 0))) {
+            SqsPolyMethod method = method(outbox);
+            for (int i = 0; i < 25; i++) {
+                assertTrue(((String) method.handle(new Object[] { "message-" + i })).startsWith("0-"));
+            }
+
+            await(() -> outbox.getSent() == 25);
+            assertEquals(expected(0, 25), bodies(accepted));
+            assertEquals(0, outbox.getBacklog());
+        }
+    }
+
+    @Test
+    public void retriesThrottling() throws Throwable {
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs(accepted, 3))
+                .withBackoff(1, 10, TimeUnit.MILLISECONDS)) {
+
+            SqsPolyMethod method = method(outbox);
+            for (int i = 0; i < 5; i++) {
+                method.handle(new Object[] { "message-" + i });
+            }
+
+            await(() -> outbox.getSent() == 5);
+            assertEquals(expected(0, 5), bodies(accepted));
+            assertEquals(3, outbox.getRetries());
+        }
+    }
+
+    @Test
+    public void sendsUnderLimits() throws Throwable {
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100);
+        TokenBucket rateLimit = new TokenBucket(1, 5);
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs(accepted, 3))
+                .withBackoff(1, 10, TimeUnit.MILLISECONDS)
+                .withLimits(limiter, rateLimit)) {
+
+            method(outbox).handle(new Object[] { "message-0" });
+            await(() -> outbox.getSent() == 1);
+
+            // Every attempt took a token, the throttled ones also shrank the limit
+            assertEquals(3, limiter.getDropped());
+            assertTrue(limiter.getLimit() < 10);
+            assertEquals(0, limiter.getInFlight());
+            assertEquals(0, rateLimit.reserve(0, TimeUnit.SECONDS));
+            assertEquals(-1, rateLimit.reserve(0, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void dropsRejectedEntries() throws Throwable {
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs(accepted, 0))) {
+            SqsPolyMethod method = method(outbox);
+            method.handle(new Object[] { "message-0" });
+            method.handle(new Object[] { "bad" });
+            method.handle(new Object[] { "message-1" });
+
+            await(() -> outbox.getBacklog() == 0);
+            assertEquals(expected(0, 2), bodies(accepted));
+            assertEquals(1, outbox.getDropped());
+        }
+
+        assertEquals(Collections.singletonList("[\"bad\"]"), deadLetterBodies(folder.getRoot().toPath()));
+    }
+
+    @Test
+    public void dropsBatchesForMissingQueue() throws Throwable {
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs(accepted, 0))) {
+            method(outbox).handle(new Object[] { "message-0" });
+            method(outbox, "missing-queue").handle(new Object[] { "lost-0" });
+            method(outbox, "missing-queue").handle(new Object[] { "lost-1" });
+            method(outbox).handle(new Object[] { "message-1" });
+
+            await(() -> outbox.getBacklog() == 0);
+            assertEquals(expected(0, 2), bodies(accepted));
+            assertEquals(2, outbox.getDropped());
+            assertEquals(0, outbox.getRetries());
+        }
+
+        // Kept for when the queue exists again
+        List<SendMessageRequest> lost = SqsOutbox.readDeadLetters(folder.getRoot().toPath());
+        assertEquals(Arrays.asList("[\"lost-0\"]", "[\"lost-1\"]"), deadLetterBodies(folder.getRoot().toPath()));
+        assertEquals("missing-queue", lost.get(0).getQueueUrl());
+    }
+
+    @Test
+    public void replaysAfterRestart() throws Throwable {
+        Path directory = folder.getRoot().toPath();
+        try (SqsOutbox outbox = new SqsOutbox(directory, unreachable(), 4096, SqsOutbox.Fsync.ALWAYS)
+                .withBackoff(1, 5, TimeUnit.MILLISECONDS)) {
+            SqsPolyMethod method = method(outbox);
+            for (int i = 0; i < 200; i++) {
+                method.handle(new Object[] { "message-" + i });
+            }
+
+            await(() -> outbox.getRetries() > 2);
+            assertEquals(200, outbox.getBacklog());
+        }
+        assertTrue(segmentFiles(directory) > 1);
+
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(directory, sqs(accepted, 0), 4096, SqsOutbox.Fsync.ALWAYS)) {
+            assertEquals(200, outbox.getRecovered());
+            await(() -> outbox.getBacklog() == 0);
+            assertEquals(expected(0, 200), bodies(accepted));
+
+            // Delivered segments are deleted, only the one being written to is left
+            await(() -> outbox.getSegments() == 1);
+            assertEquals(1, segmentFiles(directory));
+
+            method(outbox).handle(new Object[] { "message-200" });
+            await(() -> outbox.getSent() == 201);
+        }
+
+        try (SqsOutbox outbox = new SqsOutbox(directory, sqs(accepted, 0), 4096, SqsOutbox.Fsync.ALWAYS)) {
+            assertEquals(0, outbox.getRecovered());
+        }
+        assertEquals(expected(0, 201), bodies(accepted));
+    }
+
+    @Test
+    public void tornRecordEndsTheLog() throws Throwable {
+        Path directory = folder.getRoot().toPath();
+        try (SqsOutbox outbox = new SqsOutbox(directory, unreachable(), 4096, SqsOutbox.Fsync.NEVER)
+                .withBackoff(1, 5, TimeUnit.MILLISECONDS)) {
+            SqsPolyMethod method = method(outbox);
+            for (int i = 0; i < 3; i++) {
+                method.handle(new Object[] { "message-" + i });
+            }
+        }
+
+        // Corrupt the last byte of the third record, as if the crash happened while it was being written
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter((path) -> path.getFileName().toString().endsWith(".log")).findFirst().get();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int position = 0;
+            for (int i = 0; i < 2; i++) {
+                file.seek(position);
+                position += OutboxSegment.HEADER + file.readInt();
+            }
+            file.seek(position);
+            int last = position + OutboxSegment.HEADER + file.readInt() - 1;
+            file.seek(last);
+            int value = file.read();
+            file.seek(last);
+            file.write(value ^ 0xff);
+        }
+
+        List<SendMessageBatchRequestEntry> accepted = Collections.synchronizedList(new ArrayList<>());
+        try (SqsOutbox outbox = new SqsOutbox(directory, sqs(accepted, 0), 4096, SqsOutbox.Fsync.NEVER)) {
+            assertEquals(2, outbox.getRecovered());
+            method(outbox).handle(new Object[] { "message-2" });
+
+            await(() -> outbox.getSent() == 3);
+            assertEquals(expected(0, 3), bodies(accepted));
+        }
+    }
+
+    @Test
+    public void forcesWhileSendIsStuck() throws Throwable {
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessageBatch(any(SendMessageBatchRequest.class))).thenAnswer((invocation) -> {
+            stuck.countDown();
+            release.await();
+            throw new com.amazonaws.SdkClientException("Unable to execute HTTP request");
+        });
+
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), sqs, 4096, SqsOutbox.Fsync.INTERVAL)) {
+            SqsPolyMethod method = method(outbox);
+            method.handle(new Object[] { "message-0" });
+            assertTrue(stuck.await(10, TimeUnit.SECONDS));
+
+            long forced = outbox.getForced();
+            method.handle(new Object[] { "message-1" });
+            await(() -> outbox.getForced() > forced);
+            release.countDown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordLargerThanSegment() throws Throwable {
+        try (SqsOutbox outbox = new SqsOutbox(folder.getRoot().toPath(), unreachable(), 64, SqsOutbox.Fsync.NEVER)) {
+            method(outbox).handle(new Object[] { "a message that is longer than the segment is" });
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.aws.sqs;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestSqsPolyDispatcher {
+
+    private static final Type[] TYPES = new Type[] { String.class, Integer.class };
+
+    /**
+     * Mock queue: sends go to an in memory queue, receives take from it.
+     */
+    private static class FakeQueue {
+        final AmazonSQS sqs = mock(AmazonSQS.class);
+        final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+        final List<ReceiveMessageRequest> receives = Collections.synchronizedList(new ArrayList<>());
+        final List<DeleteMessageBatchRequest> deletes = Collections.synchronizedList(new ArrayList<>());
+        final List<ChangeMessageVisibilityBatchRequest> extensions = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger ids = new AtomicInteger();
+
+        FakeQueue() {
+            when(sqs.sendMessage(any(SendMessageRequest.class))).thenAnswer((invocation) -> {
+                SendMessageRequest request = invocation.getArgument(0);
+                String id = Integer.toString(ids.incrementAndGet());
+                messages.add(new Message()
+                        .withMessageId(id)
+                        .withReceiptHandle("receipt-" + id)
+                        .withBody(request.getMessageBody())
+                        .withMessageAttributes(request.getMessageAttributes()));
+                return new SendMessageResult().withMessageId(id);
+            });
+
+            when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer((invocation) -> {
+                ReceiveMessageRequest request = invocation.getArgument(0);
+                receives.add(request);
+
+                List<Message> received = new ArrayList<>();
+                Message first = messages.poll(50, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    received.add(first);
+                    messages.drainTo(received, request.getMaxNumberOfMessages() - 1);
+                }
+                return new ReceiveMessageResult().withMessages(received);
+            });
+
+            when(sqs.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenAnswer((invocation) -> {
+                DeleteMessageBatchRequest request = invocation.getArgument(0);
+                deletes.add(request);
+
+                DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+                for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                    result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+                }
+                return result;
+            });
+
+            when(sqs.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenAnswer((invocation) -> {
+                extensions.add(invocation.getArgument(0));
+                return new ChangeMessageVisibilityBatchResult();
+            });
+        }
+
+        int deleted() {
+            int count = 0;
+            synchronized (deletes) {
+                for (DeleteMessageBatchRequest request : deletes) {
+                    assertTrue(request.getEntries().size() <= SqsPolyDispatcher.MAX_RECEIVE);
+                    count += request.getEntries().size();
+                }
+            }
+            return count;
+        }
+    }
+
+    @Test
+    public void dispatchesAndDeletes() throws Throwable {
+        FakeQueue queue = new FakeQueue();
+        SqsPolyMethod sender = new SqsPolyMethod("dispatch-queue", queue.sqs);
+        for (int i = 0; i < 25; i++) {
+            sender.handle(new Object[] { "value-" + i, i });
+        }
+
+        List<Object[]> calls = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(25);
+
+        SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("dispatch-queue", queue.sqs, (args) -> {
+            calls.add(args);
+            done.countDown();
+            return null;
+        }, TYPES).withConcurrency(1, 4, 20);
+
+        dispatcher.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        dispatcher.close();
+
+        assertEquals(25, calls.size());
+        int sum = 0;
+        for (Object[] args : calls) {
+            assertEquals("value-" + args[1], args[0]);
+            sum += (Integer) args[1];
+        }
+        assertEquals(300, sum);
+
+        assertEquals(25, dispatcher.getReceived());
+        assertEquals(25, dispatcher.getProcessed());
+        assertEquals(0, dispatcher.getFailed());
+        assertEquals(25, dispatcher.getDeleted());
+        assertEquals(25, queue.deleted());
+        assertEquals(0, dispatcher.getInFlight());
+
+        for (ReceiveMessageRequest request : queue.receives) {
+            assertTrue(request.getMaxNumberOfMessages() <= SqsPolyDispatcher.MAX_RECEIVE);
+            assertEquals(Integer.valueOf(SqsPolyDispatcher.MAX_WAIT_SECONDS), request.getWaitTimeSeconds());
+        }
+    }
+
+    @Test
+    public void failedMessagesAreNotDeleted() throws Throwable {
+        FakeQueue queue = new FakeQueue();
+        SqsPolyMethod sender = new SqsPolyMethod("dispatch-queue", queue.sqs);
+        for (int i = 0; i < 10; i++) {
+            sender.handle(new Object[] { "value-" + i, i });
+        }
+
+        CountDownLatch done = new CountDownLatch(10);
+        SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("dispatch-queue", queue.sqs, (args) -> {
+            done.countDown();
+            if ((Integer) args[1] % 2 == 0) {
+                throw new IllegalStateException("even");
+            }
+            return null;
+        }, TYPES).withConcurrency(2, 2, 10);
+
+        dispatcher.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        dispatcher.close();
+
+        assertEquals(5, dispatcher.getProcessed());
+        assertEquals(5, dispatcher.getFailed());
+        assertEquals(5, dispatcher.getDeleted());
+        assertEquals(5, queue.deleted());
+        for (DeleteMessageBatchRequest request : queue.deletes) {
+            for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                assertTrue(Integer.parseInt(entry.getReceiptHandle().substring("receipt-".length())) % 2 == 0);
+            }
+        }
+    }
+
+    @Test
+    public void prefetchBoundsReceives() throws Throwable {
+        FakeQueue queue = new FakeQueue();
+        SqsPolyMethod sender = new SqsPolyMethod("dispatch-queue", queue.sqs);
+        for (int i = 0; i < 12; i++) {
+            sender.handle(new Object[] { "value-" + i, i });
+        }
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("dispatch-queue", queue.sqs, (args) -> {
+            started.countDown();
+            release.await();
+            return null;
+        }, TYPES).withConcurrency(1, 3, 3);
+
+        dispatcher.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+
+        assertEquals(3, dispatcher.getReceived());
+        assertEquals(9, queue.messages.size());
+
+        release.countDown();
+        dispatcher.close();
+        assertEquals(dispatcher.getReceived(), dispatcher.getDeleted());
+    }
+
+    @Test
+    public void extendsVisibilityOfSlowCalls() throws Throwable {
+        FakeQueue queue = new FakeQueue();
+        new SqsPolyMethod("dispatch-queue", queue.sqs).handle(new Object[] { "slow", 1 });
+
+        CountDownLatch done = new CountDownLatch(1);
+        SqsPolyDispatcher dispatcher = new SqsPolyDispatcher("dispatch-queue", queue.sqs, (args) -> {
+            Thread.sleep(1500);
+            done.countDown();
+            return null;
+        }, TYPES).withVisibilityTimeout(1);
+
+        dispatcher.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        dispatcher.close();
+
+        assertTrue(dispatcher.getExtended() >= 1);
+        ChangeMessageVisibilityBatchRequest request = queue.extensions.get(0);
+        assertEquals("receipt-1", request.getEntries().get(0).getReceiptHandle());
+        assertEquals(Integer.valueOf(1), request.getEntries().get(0).getVisibilityTimeout());
+        assertEquals(1, dispatcher.getDeleted());
+    }
+
+}
@@ -16,19 +16,36 @@
 package threeguys.polymethods.aws.sqs;
 
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.services.sqs.model.MessageSystemAttributeValue;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import threeguys.polymethods.core.limit.AdaptiveLimiter;
+import threeguys.polymethods.core.limit.TokenBucket;
 
+import java.io.File;
+import java.lang.reflect.Type;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -37,6 +54,9 @@ import static org.mockito.Mockito.when;
 
 public class TestSqsPolyMethod {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void happyCase() throws Throwable {
         SendMessageResult result = new SendMessageResult();
@@ -162,4 +182,328 @@ public class TestSqsPolyMethod {
                 null, SqsPolyMethod.voidResultCreator());
     }
 
+    private static String repeated(char c, int count) {
+        char [] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static SendMessageRequest sendWithCodec(BodyCodec codec, int threshold, Object[] args,
+                                                    Map<String, MessageAttributeValue> attrs) throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        new SqsPolyMethod("codec-queue", sqs,
+                SqsPolyMethod.jsonSerializer(), null, null,
+                attrs == null ? null : (a) -> attrs,
+                null,
+                null, SqsPolyMethod.voidResultCreator())
+                .withCodec(codec, threshold)
+                .handle(args);
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(1)).sendMessage(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void codecRoundTrip() throws Throwable {
+        String big = repeated('x', 600 * 1024);
+        Map<String, MessageAttributeValue> attrs = new HashMap<>();
+        attrs.put("yo", new MessageAttributeValue().withDataType("String").withStringValue("man"));
+
+        for (BodyCodec codec : new BodyCodec[]{ BodyCodecs.gzip(), BodyCodecs.deflate() }) {
+            SendMessageRequest req = sendWithCodec(codec, 1024, new Object[]{ big }, attrs);
+
+            assertTrue(req.getMessageBody().length() < SqsPolyMethod.MAX_MESSAGE_SIZE);
+            assertEquals(codec.getName(), req.getMessageAttributes().get(SqsPolyMethod.ENCODING_ATTRIBUTE).getStringValue());
+            assertEquals("man", req.getMessageAttributes().get("yo").getStringValue());
+            assertFalse(attrs.containsKey(SqsPolyMethod.ENCODING_ATTRIBUTE));
+
+            Message message = new Message()
+                    .withBody(req.getMessageBody())
+                    .withMessageAttributes(req.getMessageAttributes());
+            assertEquals("[\"" + big + "\"]", new SqsMessageDecoder().decode(message));
+        }
+    }
+
+    @Test
+    public void codecBelowThreshold() throws Throwable {
+        SendMessageRequest req = sendWithCodec(BodyCodecs.gzip(), 1024, new Object[]{ "small" }, null);
+        assertEquals("[\"small\"]", req.getMessageBody());
+        assertTrue(req.getMessageAttributes().isEmpty());
+
+        Message message = new Message().withBody(req.getMessageBody());
+        assertEquals("[\"small\"]", new SqsMessageDecoder().decode(message));
+    }
+
+    @Test
+    public void messageTooLarge() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        SqsPolyMethod method = new SqsPolyMethod("small-queue", sqs);
+
+        try {
+            method.handle(new Object[]{ repeated('x', SqsPolyMethod.MAX_MESSAGE_SIZE) });
+            fail("Expected the oversized message to be rejected");
+        } catch (IllegalArgumentException e) {
+            verify(sqs, times(0)).sendMessage(any(SendMessageRequest.class));
+        }
+    }
+
+    @Test
+    public void claimCheck() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        LocalFileBlobStore store = new LocalFileBlobStore(folder.getRoot().toPath());
+        SqsPolyMethod method = new SqsPolyMethod("claim-queue", sqs)
+                .withClaimCheck(store, SqsPolyMethod.jsonWriter());
+
+        String big = repeated('y', 2 * SqsPolyMethod.MAX_MESSAGE_SIZE);
+        method.handle(new Object[]{ "small" });
+        method.handle(new Object[]{ big });
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(2)).sendMessage(captor.capture());
+
+        SendMessageRequest small = captor.getAllValues().get(0);
+        assertEquals("[\"small\"]", small.getMessageBody());
+        assertTrue(small.getMessageAttributes().isEmpty());
+
+        SendMessageRequest claim = captor.getAllValues().get(1);
+        String key = claim.getMessageAttributes().get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE).getStringValue();
+        assertEquals(key, claim.getMessageBody());
+        assertTrue(new File(folder.getRoot(), key).exists());
+
+        Message message = new Message()
+                .withBody(claim.getMessageBody())
+                .withMessageAttributes(claim.getMessageAttributes());
+        SqsMessageDecoder decoder = new SqsMessageDecoder(store);
+        assertEquals("[\"" + big + "\"]", decoder.decode(message));
+
+        decoder.release(message);
+        assertFalse(new File(folder.getRoot(), key).exists());
+    }
+
+    @Test
+    public void claimCheckBinarySpillsBeforeBase64() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        LocalFileBlobStore store = new LocalFileBlobStore(folder.getRoot().toPath());
+        SqsPolyMethod method = new SqsPolyMethod("claim-queue", sqs)
+                .withSerializer(ArgumentSerializers.smile())
+                .withClaimCheck(store);
+
+        // Fits raw, but not once base64 encoded
+        String payload = repeated('s', 200 * 1024);
+        method.handle(new Object[]{ payload });
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(1)).sendMessage(captor.capture());
+
+        SendMessageRequest claim = captor.getValue();
+        String key = claim.getMessageAttributes().get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE).getStringValue();
+        assertEquals(key, claim.getMessageBody());
+        assertTrue(new File(folder.getRoot(), key).exists());
+
+        Message message = new Message()
+                .withBody(claim.getMessageBody())
+                .withMessageAttributes(claim.getMessageAttributes());
+        assertArrayEquals(new Object[]{ payload },
+                new SqsMessageDecoder(store).readArguments(message, new Type[]{ String.class }));
+    }
+
+    @Test
+    public void claimCheckEncodesBeforeSpilling() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        LocalFileBlobStore store = new LocalFileBlobStore(folder.getRoot().toPath());
+        SqsPolyMethod method = new SqsPolyMethod("claim-queue", sqs)
+                .withCodec(BodyCodecs.gzip(), 1024)
+                .withClaimCheck(store, SqsPolyMethod.jsonWriter());
+
+        // Far over the limit raw, a few KB compressed
+        String compressible = repeated('c', 2 * 1024 * 1024);
+        method.handle(new Object[]{ compressible });
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(1)).sendMessage(captor.capture());
+
+        SendMessageRequest sent = captor.getValue();
+        assertNull(sent.getMessageAttributes().get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE));
+        assertEquals(BodyCodecs.GZIP, sent.getMessageAttributes().get(SqsPolyMethod.ENCODING_ATTRIBUTE).getStringValue());
+        String [] blobs = folder.getRoot().list();
+        assertEquals(0, blobs == null ? 0 : blobs.length);
+
+        Message message = new Message()
+                .withBody(sent.getMessageBody())
+                .withMessageAttributes(sent.getMessageAttributes());
+        assertEquals("[\"" + compressible + "\"]", new SqsMessageDecoder(store).decode(message));
+    }
+
+    @Test
+    public void claimCheckSpillsWhatCodecCannotShrink() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        LocalFileBlobStore store = new LocalFileBlobStore(folder.getRoot().toPath());
+        SqsPolyMethod method = new SqsPolyMethod("claim-queue", sqs)
+                .withCodec(BodyCodecs.gzip(), 1024)
+                .withClaimCheck(store, SqsPolyMethod.jsonWriter());
+
+        StringBuilder random = new StringBuilder();
+        Random rnd = new Random(42);
+        while (random.length() < 2 * SqsPolyMethod.MAX_MESSAGE_SIZE) {
+            random.append(Long.toString(rnd.nextLong(), 36));
+        }
+        method.handle(new Object[]{ random.toString() });
+
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs, times(1)).sendMessage(captor.capture());
+
+        SendMessageRequest claim = captor.getValue();
+        String key = claim.getMessageAttributes().get(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE).getStringValue();
+        assertNull(claim.getMessageAttributes().get(SqsPolyMethod.ENCODING_ATTRIBUTE));
+        assertTrue(new File(folder.getRoot(), key).exists());
+
+        Message message = new Message()
+                .withBody(claim.getMessageBody())
+                .withMessageAttributes(claim.getMessageAttributes());
+        assertEquals("[\"" + random + "\"]", new SqsMessageDecoder(store).decode(message));
+    }
+
+    @Test
+    public void claimCheckSendFailure() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenThrow(new IllegalStateException("sqs is down"));
+
+        SqsPolyMethod method = new SqsPolyMethod("claim-queue", sqs)
+                .withClaimCheck(new LocalFileBlobStore(folder.getRoot().toPath()), SqsPolyMethod.jsonWriter());
+
+        try {
+            method.handle(new Object[]{ repeated('z', 2 * SqsPolyMethod.MAX_MESSAGE_SIZE) });
+            fail("Expected the send to fail");
+        } catch (IllegalStateException e) {
+            String [] remaining = folder.getRoot().list();
+            assertEquals(0, remaining == null ? 0 : remaining.length);
+        }
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void claimCheckWithoutBlob() throws Throwable {
+        Map<String, MessageAttributeValue> attrs = new HashMap<>();
+        attrs.put(SqsPolyMethod.CLAIM_CHECK_ATTRIBUTE, new MessageAttributeValue().withDataType("String").withStringValue("missing"));
+
+        new SqsMessageDecoder(new LocalFileBlobStore(folder.getRoot().toPath()))
+                .decode(new Message().withBody("missing").withMessageAttributes(attrs));
+    }
+
+    private static AmazonSQSException sqsError(String code, int status) {
+        AmazonSQSException e = new AmazonSQSException(code);
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        return e;
+    }
+
+    @Test
+    public void throttlingCodes() {
+        assertTrue(SqsPolyMethod.isThrottling(sqsError("RequestThrottled", 400)));
+        assertTrue(SqsPolyMethod.isThrottling(sqsError("OverLimit", 403)));
+        assertTrue(SqsPolyMethod.isThrottling(sqsError("Whatever", 429)));
+        assertFalse(SqsPolyMethod.isThrottling(sqsError("InvalidParameterValue", 400)));
+        assertFalse(SqsPolyMethod.isThrottling(new IllegalStateException("RequestThrottled")));
+    }
+
+    @Test
+    public void throttlingShrinksLimit() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class)))
+                .thenThrow(sqsError("InvalidParameterValue", 400))
+                .thenThrow(sqsError("RequestThrottled", 400))
+                .thenReturn(new SendMessageResult());
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 100);
+        SqsPolyMethod method = new SqsPolyMethod("some-queue", sqs)
+                .withLimits(limiter, null, 0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                method.handle(new Object[] { "a-string" });
+                fail("Should have thrown");
+            } catch (AmazonSQSException e) {
+                // expected
+            }
+        }
+
+        assertEquals(1, limiter.getDropped());
+        assertEquals(8, limiter.getLimit());
+        assertNull(method.handle(new Object[] { "a-string" }));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void rejectsOverConcurrencyLimit() throws Throwable {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenAnswer((invocation) -> {
+            sending.countDown();
+            release.await();
+            return new SendMessageResult();
+        });
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+        TokenBucket bucket = new TokenBucket(1, 2);
+        SqsPolyMethod method = new SqsPolyMethod("some-queue", sqs)
+                .withLimits(limiter, bucket, 10, TimeUnit.MILLISECONDS);
+
+        Thread first = new Thread(() -> {
+            try {
+                method.handle(new Object[] { "first" });
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        });
+        first.start();
+        sending.await();
+
+        try {
+            method.handle(new Object[] { "second" });
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, limiter.getRejected());
+        }
+
+        release.countDown();
+        first.join();
+        verify(sqs, times(1)).sendMessage(any(SendMessageRequest.class));
+
+        // The rejected call gave its rate token back
+        method.handle(new Object[] { "third" });
+        assertEquals(0, bucket.getRejected());
+        verify(sqs, times(2)).sendMessage(any(SendMessageRequest.class));
+    }
+
+    @Test
+    public void rateLimit() throws Throwable {
+        AmazonSQS sqs = mock(AmazonSQS.class);
+        when(sqs.sendMessage(any(SendMessageRequest.class))).thenReturn(new SendMessageResult());
+
+        TokenBucket bucket = new TokenBucket(1, 2);
+        SqsPolyMethod method = new SqsPolyMethod("some-queue", sqs)
+                .withLimits(null, bucket, 0, TimeUnit.MILLISECONDS);
+
+        method.handle(new Object[] { "first" });
+        method.handle(new Object[] { "second" });
+        try {
+            method.handle(new Object[] { "third" });
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, bucket.getRejected());
+        }
+        verify(sqs, times(2)).sendMessage(any(SendMessageRequest.class));
+    }
+
 }
@@ -0,0 +1,70 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.core.methods.DelegatingPolyMethod;
+import threeguys.polymethods.core.methods.MethodHandlePolyMethod;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of forwarding a PolyMethod call to a concrete implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DelegationBenchmark {
+
+    private PolyMethod reflective;
+    private PolyMethod methodHandle;
+
+    private Object[] args = new Object[]{ 20, 22 };
+
+    @Setup
+    public void setup() throws Throwable {
+        Method add = BenchmarkService.class.getMethod("add", int.class, int.class);
+        LegacyService legacy = new LegacyService();
+
+        reflective = new DelegatingPolyMethod<>(legacy, add);
+        methodHandle = new MethodHandlePolyMethod<>(legacy, add);
+    }
+
+    @Benchmark
+    public Object delegating() throws Throwable {
+        return reflective.handle(args);
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Throwable {
+        return methodHandle.handle(args);
+    }
+
+}
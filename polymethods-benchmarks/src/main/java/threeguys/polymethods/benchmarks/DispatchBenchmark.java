@@ -0,0 +1,139 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.aop.framework.ProxyFactory;
+import threeguys.polymethods.core.PolyClass;
+import threeguys.polymethods.core.PolyClassBuilder;
+import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.core.metrics.MetricsRegistry;
+import threeguys.polymethods.spring.PolyInterceptor;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single replaced call through each of the dispatch mechanisms, compared to calling the
+ * implementation directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final PolyMethod ECHO = (args) -> args[0];
+
+    private BenchmarkService direct;
+    private BenchmarkService polyClass;
+    private BenchmarkService generated;
+    private BenchmarkService instrumented;
+    private BenchmarkService polyDispatcher;
+    private BenchmarkService interceptor;
+    private BenchmarkService aroundAdvice;
+
+    private String arg = "benchmark";
+
+    @Setup
+    public void setup() throws Throwable {
+        direct = new LegacyService();
+
+        PolyClass clazz = PolyClassBuilder.builder()
+                .withTarget(BenchmarkService.class)
+                .withMethod("echo", new Class<?>[]{ String.class }, ECHO)
+                .build();
+        polyClass = (BenchmarkService) Proxy.newProxyInstance(BenchmarkService.class.getClassLoader(),
+                clazz.getInterfaces(), clazz);
+
+        generated = PolyClassBuilder.builder()
+                .withTarget(BenchmarkService.class)
+                .withMethod("echo", new Class<?>[]{ String.class }, ECHO)
+                .buildGenerated(BenchmarkService.class, new LegacyService());
+
+        instrumented = PolyClassBuilder.builder()
+                .withTarget(BenchmarkService.class)
+                .withMethod("echo", new Class<?>[]{ String.class }, ECHO)
+                .withMetrics(new MetricsRegistry())
+                .buildGenerated(BenchmarkService.class, new LegacyService());
+
+        polyDispatcher = BenchmarkServicePolyDispatcher.builder()
+                .withEchoHandler(ECHO)
+                .withFallback(new LegacyService())
+                .build();
+
+        ProxyFactory proxyFactory = new ProxyFactory(new LegacyService());
+        proxyFactory.addInterface(BenchmarkService.class);
+        proxyFactory.addAdvice((PolyInterceptor) PolyInterceptor.builder()
+                .withTarget(BenchmarkService.class)
+                .withMethod("echo", new Class<?>[]{ String.class }, ECHO)
+                .build());
+        interceptor = (BenchmarkService) proxyFactory.getProxy();
+
+        AspectJProxyFactory aspectFactory = new AspectJProxyFactory(new LegacyService());
+        aspectFactory.addInterface(BenchmarkService.class);
+        aspectFactory.addAspect(new EchoAspect(ECHO));
+        aroundAdvice = aspectFactory.getProxy();
+    }
+
+    @Benchmark
+    public String direct() {
+        return direct.echo(arg);
+    }
+
+    @Benchmark
+    public String polyClassProxy() {
+        return polyClass.echo(arg);
+    }
+
+    @Benchmark
+    public String generatedClass() {
+        return generated.echo(arg);
+    }
+
+    @Benchmark
+    public String polyDispatcher() {
+        return polyDispatcher.echo(arg);
+    }
+
+    @Benchmark
+    public String instrumentedGeneratedClass() {
+        return instrumented.echo(arg);
+    }
+
+    @Benchmark
+    public String polyInterceptor() {
+        return interceptor.echo(arg);
+    }
+
+    @Benchmark
+    public String polyAroundAdvice() {
+        return aroundAdvice.echo(arg);
+    }
+
+}
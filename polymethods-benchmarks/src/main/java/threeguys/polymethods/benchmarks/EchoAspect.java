@@ -0,0 +1,36 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.benchmarks;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.spring.PolyAroundAdvice;
+
+@Aspect
+public class EchoAspect extends PolyAroundAdvice {
+
+    public EchoAspect(PolyMethod method) {
+        super(method);
+    }
+
+    @Around("execution(* threeguys.polymethods.benchmarks.BenchmarkService.echo(..))")
+    public Object echo(ProceedingJoinPoint jp) throws Throwable {
+        return super.handle(jp.getArgs());
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import threeguys.polymethods.aws.sqs.ArgumentSerializers;
+import threeguys.polymethods.aws.sqs.SqsPolyMethod;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and request building cost of {@link SqsPolyMethod#handle(Object[])}, sending to a stub client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqsBenchmark {
+
+    @Param({ "16", "1024" })
+    private int payloadSize;
+
+    @Param({ "mapper", "json", "smile", "cbor" })
+    private String format;
+
+    private SqsPolyMethod method;
+    private Object[] args;
+
+    @Setup
+    public void setup() {
+        StubAmazonSQS sqs = new StubAmazonSQS();
+        switch (format) {
+            case "mapper":
+                method = new SqsPolyMethod("benchmark-queue", sqs, SqsPolyMethod.jsonSerializer(),
+                        null, null, null, null, null, SqsPolyMethod.voidResultCreator());
+                break;
+            case "json":
+                method = new SqsPolyMethod("benchmark-queue", sqs).withSerializer(ArgumentSerializers.json());
+                break;
+            case "smile":
+                method = new SqsPolyMethod("benchmark-queue", sqs).withSerializer(ArgumentSerializers.smile());
+                break;
+            case "cbor":
+                method = new SqsPolyMethod("benchmark-queue", sqs).withSerializer(ArgumentSerializers.cbor());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+
+        char [] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", 42);
+        map.put("payload", new String(chars));
+
+        args = new Object[]{ map, "a-string", 13 };
+    }
+
+    @Benchmark
+    public Object handle() throws Throwable {
+        return method.handle(args);
+    }
+
+}
@@ -0,0 +1,42 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.benchmarks;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory SQS client that acknowledges every send without any network or serialization cost of its own.
+ */
+public class StubAmazonSQS extends AbstractAmazonSQS {
+
+    private final AtomicLong sent = new AtomicLong();
+    private final SendMessageResult result = new SendMessageResult().withMessageId("benchmark");
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        sent.incrementAndGet();
+        return result;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link PolyMethod} whose result is delivered through a {@link CompletableFuture}. When it is registered on a
+ * {@link PolyClass} for an interface method returning {@link CompletableFuture} or
+ * {@link java.util.concurrent.CompletionStage}, the future is handed back to the caller as-is. For any other
+ * interface method, {@link #handle(Object[])} waits for the result on the calling thread.
+ */
+@FunctionalInterface
+public interface AsyncPolyMethod extends PolyMethod {
+
+    CompletableFuture<?> handleAsync(Object [] args) throws Throwable;
+
+    @Override
+    default Object handle(Object [] args) throws Throwable {
+        try {
+            return handleAsync(args).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Adapts a synchronous method by running it on the given executor.
+     */
+    static AsyncPolyMethod of(PolyMethod method, Executor executor) {
+        return (args) -> {
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            executor.execute(() -> {
+                try {
+                    future.complete(method.handle(args));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+            return future;
+        };
+    }
+
+}
@@ -17,16 +17,41 @@ package threeguys.polymethods.core;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class PolyClass implements InvocationHandler {
 
-    private Class<?> targetClass;
-    private Map<String, PolyMethod> methods;
+    private final Class<?> targetClass;
 
-    public PolyClass(Class<?> targetClass, Map<String, PolyMethod> methods) {
+    // Keyed by the Method itself; Method.hashCode() and equals() are computed from cached
+    // class/name strings and parameter arrays, so a lookup neither allocates nor builds strings
+    private final Map<Method, PolyMethod> methods;
+
+    public PolyClass(Class<?> targetClass, Map<Method, PolyMethod> methods) {
         this.targetClass = targetClass;
-        this.methods = methods;
+        this.methods = Collections.unmodifiableMap(bind(methods));
+    }
+
+    /**
+     * Resolves how each implementation is called: an {@link AsyncPolyMethod} registered for a method returning a
+     * {@link CompletableFuture} (or one of its supertypes) returns its future directly, everything else goes through
+     * the synchronous {@link PolyMethod#handle(Object[])}.
+     */
+    static Map<Method, PolyMethod> bind(Map<Method, PolyMethod> methods) {
+        Map<Method, PolyMethod> bound = new HashMap<>(methods);
+        for (Map.Entry<Method, PolyMethod> entry : bound.entrySet()) {
+            Class<?> returnType = entry.getKey().getReturnType();
+            PolyMethod impl = entry.getValue();
+            if (impl instanceof AsyncPolyMethod && returnType != Object.class
+                    && returnType.isAssignableFrom(CompletableFuture.class)) {
+                AsyncPolyMethod async = (AsyncPolyMethod) impl;
+                entry.setValue(async::handleAsync);
+            }
+        }
+        return bound;
     }
 
     public boolean implementsInterface(Class<?> aClass) {
@@ -38,18 +63,17 @@ public class PolyClass implements InvocationHandler {
     }
 
     public boolean implementsMethod(Method method) {
-        return targetClass.equals(method.getDeclaringClass()) && methods.containsKey(method.toString());
+        return targetClass.equals(method.getDeclaringClass()) && methods.containsKey(method);
     }
 
     @Override
     public Object invoke(Object o, Method method, Object[] objects) throws Throwable {
-        String key = method.toString();
-        PolyMethod m = methods.get(key);
+        PolyMethod m = methods.get(method);
         if (m != null) {
             return m.handle(objects);
         }
 
-        throw new NoSuchMethodException("Method implementation: " + key + " was not found!");
+        throw new NoSuchMethodException("Method implementation: " + method + " was not found!");
     }
 
 }
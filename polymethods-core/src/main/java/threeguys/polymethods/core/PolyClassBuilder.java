@@ -15,6 +15,9 @@
  */
 package threeguys.polymethods.core;
 
+import threeguys.polymethods.core.metrics.InstrumentedPolyMethod;
+import threeguys.polymethods.core.metrics.MetricsRegistry;
+
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -24,8 +27,9 @@ import java.util.Map;
 public class PolyClassBuilder<T extends PolyClass> {
 
     private Class<?> target;
-    private Map<String, PolyMethod> methods = new HashMap<>();
+    private Map<Method, PolyMethod> methods = new HashMap<>();
     private Constructor<T> constructor;
+    private MetricsRegistry metrics;
 
     private PolyClassBuilder(Constructor<T> constructor) {
         this.constructor = constructor;
@@ -45,7 +49,7 @@ public class PolyClassBuilder<T extends PolyClass> {
     }
 
     public PolyClassBuilder<T> withMethod(Method method, PolyMethod impl) {
-        this.methods.put(method.toString(), impl);
+        this.methods.put(method, impl);
         return this;
     }
 
@@ -57,8 +61,42 @@ public class PolyClassBuilder<T extends PolyClass> {
         return withMethod(target.getDeclaredMethod(name, argTypes), impl);
     }
 
+    /**
+     * Records call counts, errors and latency of every registered method into the registry, named by
+     * {@link MetricsRegistry#nameOf(Method)}. Without a registry methods are dispatched with no instrumentation.
+     */
+    public PolyClassBuilder<T> withMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     public PolyClass build() throws IllegalAccessException, InvocationTargetException, InstantiationException {
-        return constructor.newInstance(target, methods);
+        return constructor.newInstance(target, instrument());
+    }
+
+    /**
+     * Builds a generated class implementing the target interface instead of a {@link PolyClass} handler. Each
+     * registered method calls its {@link PolyMethod} directly without going through {@link java.lang.reflect.Proxy},
+     * and unregistered methods are forwarded to the fallback, or throw {@link UnsupportedOperationException}
+     * when no fallback is given. Requires Byte Buddy on the classpath.
+     */
+    public <I> I buildGenerated(Class<I> type, I fallback) throws IllegalAccessException, InvocationTargetException, InstantiationException {
+        if (target != null && !target.equals(type)) {
+            throw new IllegalArgumentException("Builder target " + target + " does not match " + type);
+        }
+        return PolyClassGenerator.generate(type, instrument(), fallback);
+    }
+
+    private Map<Method, PolyMethod> instrument() {
+        if (metrics == null) {
+            return methods;
+        }
+
+        Map<Method, PolyMethod> instrumented = new HashMap<>();
+        for (Map.Entry<Method, PolyMethod> entry : methods.entrySet()) {
+            instrumented.put(entry.getKey(), InstrumentedPolyMethod.wrap(entry.getValue(), metrics.metrics(entry.getKey())));
+        }
+        return instrumented;
     }
 
 }
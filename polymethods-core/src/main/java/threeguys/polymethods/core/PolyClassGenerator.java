@@ -0,0 +1,139 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.dynamic.loading.MultipleParentClassLoader;
+import net.bytebuddy.implementation.ExceptionMethod;
+import net.bytebuddy.implementation.MethodCall;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.bytebuddy.matcher.ElementMatchers.is;
+
+/**
+ * Emits a concrete class implementing a target interface where every registered method calls
+ * straight into its {@link PolyMethod} field, and every other abstract method calls the fallback
+ * delegate. Byte Buddy is an optional dependency of polymethods-core, it only needs to be on the
+ * classpath when {@link PolyClassBuilder#buildGenerated(Class, Object)} is used.
+ */
+final class PolyClassGenerator {
+
+    private static final String FALLBACK_FIELD = "fallback";
+    private static final String METHOD_FIELD_PREFIX = "method$";
+
+    private static final Method HANDLE;
+
+    static {
+        try {
+            HANDLE = PolyMethod.class.getMethod("handle", Object[].class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private PolyClassGenerator() {
+    }
+
+    static <I> I generate(Class<I> target, Map<Method, PolyMethod> methods, I fallback)
+            throws IllegalAccessException, InvocationTargetException, InstantiationException {
+
+        if (!target.isInterface() || !Modifier.isPublic(target.getModifiers())) {
+            throw new IllegalArgumentException("Generated classes require a public interface, got: " + target);
+        }
+
+        DynamicType.Builder<Object> builder = new ByteBuddy()
+                .subclass(Object.class)
+                .implement(target);
+
+        if (fallback != null) {
+            builder = builder.defineField(FALLBACK_FIELD, target, Visibility.PRIVATE);
+        }
+
+        Map<Method, PolyMethod> bound = PolyClass.bind(methods);
+        Map<String, PolyMethod> fields = new HashMap<>();
+        for (Method method : target.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers())) {
+                continue;
+            }
+
+            PolyMethod impl = bound.get(method);
+            if (impl != null) {
+                String field = METHOD_FIELD_PREFIX + fields.size();
+                fields.put(field, impl);
+                builder = builder.defineField(field, PolyMethod.class, Visibility.PRIVATE)
+                        .method(is(method))
+                        .intercept(MethodCall.invoke(HANDLE)
+                                .onField(field)
+                                .withArgumentArray()
+                                .withAssigner(Assigner.DEFAULT, Assigner.Typing.DYNAMIC));
+
+            } else if (fallback != null) {
+                builder = builder.method(is(method))
+                        .intercept(MethodCall.invoke(method).onField(FALLBACK_FIELD).withAllArguments());
+
+            } else if (!method.isDefault()) {
+                builder = builder.method(is(method))
+                        .intercept(ExceptionMethod.throwing(UnsupportedOperationException.class,
+                                "Method implementation: " + method + " was not found!"));
+            }
+        }
+
+        ClassLoader loader = new MultipleParentClassLoader.Builder()
+                .appendMostSpecific(target, PolyMethod.class)
+                .build();
+
+        Class<?> generated = builder.make()
+                .load(loader, ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+
+        Object instance;
+        try {
+            instance = generated.getDeclaredConstructor().newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Generated class is missing its default constructor", e);
+        }
+        for (Map.Entry<String, PolyMethod> entry : fields.entrySet()) {
+            set(generated, instance, entry.getKey(), entry.getValue());
+        }
+
+        if (fallback != null) {
+            set(generated, instance, FALLBACK_FIELD, fallback);
+        }
+
+        return target.cast(instance);
+    }
+
+    private static void set(Class<?> generated, Object instance, String name, Object value) throws IllegalAccessException {
+        try {
+            Field field = generated.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(instance, value);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Generated class is missing field: " + name, e);
+        }
+    }
+
+}
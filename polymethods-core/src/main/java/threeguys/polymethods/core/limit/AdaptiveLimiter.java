@@ -0,0 +1,247 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Concurrency limit that adapts to what the downstream service can take, using additive increase, multiplicative
+ * decrease. While calls complete within {@code latencyTolerance} times the no-load latency and the limit is in
+ * use, the limit grows by about one per limit's worth of calls. A call the service dropped, e.g. because it was
+ * throttled, or a call slower than that tolerance cuts the limit by the backoff ratio, at most once per smoothed
+ * round trip so a single burst of errors only counts once. The limit therefore settles just under the point where
+ * the service starts pushing back, instead of swinging between overload and idle retries.
+ * <p>
+ * The no-load latency is the lowest latency seen, drifting slowly upwards so it follows a service that got
+ * slower for good.
+ */
+public class AdaptiveLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private double backoffRatio = 0.8;
+    private double latencyTolerance = 2.0;
+    private LongSupplier ticker = System::nanoTime;
+
+    // Written under the lock
+    private volatile double limit;
+    private volatile int waiters;
+    private long baselineNanos;
+    private long smoothedNanos;
+    private long lastDecrease;
+    // The ticker may start anywhere, even below zero, so the first decrease cannot be timed against it
+    private boolean decreased;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Outcome of one call made under the limit, exactly one of its methods must be called when the call is over.
+     */
+    public final class Permit {
+        private final long start;
+        private final int inFlightAtStart;
+
+        private Permit(long start, int inFlightAtStart) {
+            this.start = start;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * The call completed, its latency counts towards the limit.
+         */
+        public void success() {
+            release();
+            sample(ticker.getAsLong() - start, false, inFlightAtStart);
+        }
+
+        /**
+         * The service turned the call away because it is overloaded.
+         */
+        public void dropped() {
+            release();
+            dropped.increment();
+            sample(ticker.getAsLong() - start, true, inFlightAtStart);
+        }
+
+        /**
+         * The call failed for a reason that says nothing about load.
+         */
+        public void ignore() {
+            release();
+        }
+    }
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 0 < min <= initial <= max");
+        }
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @param ratio multiplier applied to the limit on each decrease, between 0 and 1
+     */
+    public AdaptiveLimiter withBackoffRatio(double ratio) {
+        if (ratio <= 0 || ratio >= 1) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1: " + ratio);
+        }
+
+        this.backoffRatio = ratio;
+        return this;
+    }
+
+    /**
+     * @param tolerance how many times the no-load latency a call may take before it counts as overload
+     */
+    public AdaptiveLimiter withLatencyTolerance(double tolerance) {
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("Latency tolerance must be over 1: " + tolerance);
+        }
+
+        this.latencyTolerance = tolerance;
+        return this;
+    }
+
+    AdaptiveLimiter withTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    /**
+     * @return a permit, or null if the limit is reached, which counts as a rejection
+     */
+    public Permit tryAcquire() {
+        Permit permit = attempt();
+        if (permit == null) {
+            rejected.increment();
+        }
+        return permit;
+    }
+
+    private Permit attempt() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= getLimit()) {
+                return null;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return new Permit(ticker.getAsLong(), current + 1);
+    }
+
+    /**
+     * Waits up to the timeout for the number of calls in flight to drop below the limit.
+     *
+     * @return a permit, or null if the limit is still reached after the timeout, which counts as a rejection
+     */
+    public Permit acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        Permit permit = attempt();
+        if (permit != null || timeout <= 0) {
+            if (permit == null) {
+                rejected.increment();
+            }
+            return permit;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            waiters++;
+            try {
+                while ((permit = attempt()) == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejected.increment();
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                return permit;
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        // Unlocked read, a missed waiter still wakes up on its own timeout or the next release
+        if (waiters > 0) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    private synchronized void sample(long latency, boolean dropped, int inFlightAtStart) {
+        long now = ticker.getAsLong();
+        boolean overloaded = dropped || (baselineNanos > 0 && latency > baselineNanos * latencyTolerance);
+
+        if (overloaded) {
+            if (!decreased || now - lastDecrease >= smoothedNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecrease = now;
+                decreased = true;
+            }
+        } else if (inFlightAtStart * 2 >= limit) {
+            // Only grow a limit that is actually being used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+
+        if (!dropped) {
+            if (baselineNanos == 0 || latency < baselineNanos) {
+                baselineNanos = Math.max(1, latency);
+            } else {
+                baselineNanos += (latency - baselineNanos) >> 10;
+            }
+            smoothedNanos = smoothedNanos == 0 ? latency : smoothedNanos + ((latency - smoothedNanos) >> 3);
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return calls turned away because the limit was reached
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return calls the service dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+}
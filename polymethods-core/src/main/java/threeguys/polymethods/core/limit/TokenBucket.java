@@ -0,0 +1,100 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limit of {@code rate} calls per second with bursts of up to {@code burst} calls, kept as the theoretical
+ * arrival time of the next call (GCRA) in a single {@link AtomicLong}, so taking a token is one compare-and-set.
+ * Callers that arrive early are told how long to wait rather than being queued.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong next = new AtomicLong(Long.MIN_VALUE);
+    private LongSupplier ticker = System::nanoTime;
+
+    private final LongAdder rejected = new LongAdder();
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    TokenBucket withTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    /**
+     * Takes a token if one is available within {@code maxWait}.
+     *
+     * @return how long the caller has to wait before going ahead, or -1 if it would be longer than
+     *         {@code maxWait}, which counts as a rejection and takes no token
+     */
+    public long reserve(long maxWait, TimeUnit unit) {
+        long maxWaitNanos = unit.toNanos(maxWait);
+        while (true) {
+            long now = ticker.getAsLong();
+            long current = next.get();
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+
+            long wait = start - toleranceNanos - now;
+            if (wait > maxWaitNanos) {
+                rejected.increment();
+                return -1;
+            }
+
+            if (next.compareAndSet(current, start + intervalNanos)) {
+                return Math.max(0, unit.convert(wait, TimeUnit.NANOSECONDS));
+            }
+        }
+    }
+
+    /**
+     * Takes a token, waiting for it up to {@code maxWait}.
+     *
+     * @return false if no token is available in time
+     */
+    public boolean acquire(long maxWait, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(unit.toNanos(maxWait), TimeUnit.NANOSECONDS);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait >= 0;
+    }
+
+    /**
+     * Gives back a token that was taken but not used, e.g. because the call was then turned away by another limit.
+     */
+    public void refund() {
+        next.addAndGet(-intervalNanos);
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+}
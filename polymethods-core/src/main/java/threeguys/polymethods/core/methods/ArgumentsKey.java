@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import java.util.Arrays;
+
+/**
+ * Value-equality key over a copy of a call's arguments, using deep equality so array arguments compare by content.
+ */
+public final class ArgumentsKey {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Object[] args;
+    private final int hash;
+
+    private ArgumentsKey(Object[] args) {
+        this.args = args;
+        this.hash = Arrays.deepHashCode(args);
+    }
+
+    public static ArgumentsKey of(Object[] args) {
+        // Proxy passes null for no-arg methods, which should share a key with an empty array
+        return new ArgumentsKey(args == null || args.length == 0 ? EMPTY : args.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof ArgumentsKey
+                && hash == ((ArgumentsKey) o).hash
+                && Arrays.deepEquals(args, ((ArgumentsKey) o).args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.deepToString(args);
+    }
+
+}
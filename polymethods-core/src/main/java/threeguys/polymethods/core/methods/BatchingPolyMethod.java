@@ -0,0 +1,209 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns single calls into calls to a bulk API. Each {@link #handle(Object[])} is queued, and a single flusher thread
+ * hands the queued calls to the {@link BulkHandler} once {@code maxItems} are waiting or {@code maxDelay} has passed
+ * since the first of them arrived. Every caller blocks until the handler completes or fails its own call.
+ * <p>
+ * Enqueueing is a {@link ConcurrentLinkedQueue} offer and an atomic increment, the flusher is only woken when the
+ * queue goes from empty to non-empty or a batch fills up.
+ */
+public class BatchingPolyMethod implements PolyMethod, AutoCloseable {
+
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * Handles a whole batch of calls at once. It should complete or fail every call, any call it leaves alone is
+     * failed once it returns, and all of them are failed if it throws.
+     */
+    @FunctionalInterface
+    public interface BulkHandler {
+        void handle(List<Call> calls) throws Throwable;
+    }
+
+    /**
+     * One queued call, in arrival order within its batch.
+     */
+    public static final class Call {
+        private final Object[] args;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Call(Object[] args) {
+            this.args = args;
+        }
+
+        public Object[] getArgs() {
+            return args;
+        }
+
+        public void complete(Object result) {
+            future.complete(result);
+        }
+
+        public void fail(Throwable failure) {
+            future.completeExceptionally(failure);
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+    }
+
+    private final BulkHandler handler;
+    private final int maxItems;
+    private final long maxDelayNanos;
+    private final Executor executor;
+
+    private final ConcurrentLinkedQueue<Call> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Thread flusher;
+
+    private volatile boolean running = true;
+    private volatile boolean closed = false;
+
+    public BatchingPolyMethod(BulkHandler handler, int maxItems, long maxDelay, TimeUnit unit) {
+        this(handler, maxItems, maxDelay, unit, Runnable::run);
+    }
+
+    /**
+     * @param executor runs each bulk call; a direct executor runs it on the flusher thread, which allows only one
+     *                 batch in flight at a time
+     */
+    public BatchingPolyMethod(BulkHandler handler, int maxItems, long maxDelay, TimeUnit unit, Executor executor) {
+        if (handler == null || unit == null || executor == null) {
+            throw new NullPointerException();
+        }
+
+        if (maxItems <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and delay cannot be negative");
+        }
+
+        this.handler = handler;
+        this.maxItems = maxItems;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.executor = executor;
+        this.flusher = new Thread(this::flushLoop, "polymethods-batch-" + THREADS.incrementAndGet());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        if (!running) {
+            throw new IllegalStateException("Batching is closed");
+        }
+
+        Call call = new Call(args);
+        pending.offer(call);
+        int queued = size.incrementAndGet();
+        if (queued == 1 || queued == maxItems) {
+            LockSupport.unpark(flusher);
+        }
+
+        // Lost the race with close(), the flusher may already have done its final drain
+        if (closed && pending.remove(call)) {
+            throw new IllegalStateException("Batching is closed");
+        }
+
+        try {
+            return call.future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(flusher);
+        flusher.join();
+    }
+
+    private void flushLoop() {
+        while (running || !pending.isEmpty()) {
+            if (size.get() == 0) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+
+            long deadline = System.nanoTime() + maxDelayNanos;
+            long remaining;
+            while (running && size.get() < maxItems && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            List<Call> batch = new ArrayList<>(Math.min(maxItems, size.get()));
+            Call call;
+            while (batch.size() < maxItems && (call = pending.poll()) != null) {
+                size.decrementAndGet();
+                batch.add(call);
+            }
+
+            if (!batch.isEmpty()) {
+                dispatch(batch);
+            }
+        }
+
+        closed = true;
+        Call call;
+        while ((call = pending.poll()) != null) {
+            call.fail(new IllegalStateException("Batching is closed"));
+        }
+    }
+
+    private void dispatch(List<Call> batch) {
+        try {
+            executor.execute(() -> runBatch(batch));
+        } catch (RuntimeException e) {
+            fail(batch, e);
+        }
+    }
+
+    private void runBatch(List<Call> batch) {
+        try {
+            handler.handle(Collections.unmodifiableList(batch));
+        } catch (Throwable t) {
+            fail(batch, t);
+            return;
+        }
+
+        // Anything the handler left out would otherwise block its caller forever
+        fail(batch, new IllegalStateException("Bulk handler did not complete call"));
+    }
+
+    private static void fail(List<Call> batch, Throwable failure) {
+        for (Call call : batch) {
+            call.fail(failure);
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Memoizes the results of a {@link PolyMethod}, keyed by its arguments. Lookups go through a
+ * {@link ConcurrentHashMap} and never block. Recency is tracked per stripe with a segmented LRU: new entries start
+ * in a probation segment and are promoted to a protected segment when hit again, so a burst of one-off calls only
+ * evicts other one-off entries. Promotion is skipped when the stripe is busy, which costs a little accuracy instead
+ * of making hits wait on each other.
+ * <p>
+ * Results, including nulls, are cached; exceptions are not. Configure the key, TTL and refresh before the method is
+ * shared between threads.
+ */
+public class CachingPolyMethod implements PolyMethod {
+
+    private static final Object NULL = new Object();
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final PolyMethod delegate;
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<Object, Node> entries;
+
+    private Function<Object[], ?> key = ArgumentsKey::of;
+    private long ttlNanos;
+    private long refreshNanos;
+    private Executor refreshExecutor;
+    private LongSupplier ticker = System::nanoTime;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Node {
+        final Object key;
+        final Stripe stripe;
+        volatile Object value;
+        volatile long loadedAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        // Guarded by the stripe lock
+        Node prev;
+        Node next;
+        boolean protect;
+        boolean linked;
+
+        Node(Object key, Stripe stripe, Object value, long loadedAt) {
+            this.key = key;
+            this.stripe = stripe;
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Node probation = sentinel();
+        final Node protectedHead = sentinel();
+        final int maxProtected;
+        final int capacity;
+        int probationSize;
+        int protectedSize;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.maxProtected = Math.max(1, capacity * PROTECTED_PERCENT / 100);
+        }
+
+        private Node sentinel() {
+            Node node = new Node(null, null, null, 0);
+            node.prev = node;
+            node.next = node;
+            return node;
+        }
+
+        void put(Node node) {
+            lock.lock();
+            try {
+                Node previous = entries.put(node.key, node);
+                if (previous != null) {
+                    unlink(previous);
+                }
+
+                linkFirst(probation, node);
+                probationSize++;
+                node.linked = true;
+
+                while (probationSize + protectedSize > capacity) {
+                    Node victim = probationSize > 0 ? probation.prev : protectedHead.prev;
+                    entries.remove(victim.key, victim);
+                    unlink(victim);
+                    evictions.increment();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void touch(Node node) {
+            if (!lock.tryLock()) {
+                return;
+            }
+
+            try {
+                if (!node.linked) {
+                    return;
+                }
+
+                if (node.protect) {
+                    moveFirst(protectedHead, node);
+                    return;
+                }
+
+                unlink(node);
+                node.protect = true;
+                node.linked = true;
+                linkFirst(protectedHead, node);
+                protectedSize++;
+
+                if (protectedSize > maxProtected) {
+                    Node demoted = protectedHead.prev;
+                    unlink(demoted);
+                    demoted.linked = true;
+                    linkFirst(probation, demoted);
+                    probationSize++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(Node node) {
+            lock.lock();
+            try {
+                if (entries.remove(node.key, node)) {
+                    unlink(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void unlink(Node node) {
+            if (!node.linked) {
+                return;
+            }
+
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            node.linked = false;
+
+            if (node.protect) {
+                protectedSize--;
+            } else {
+                probationSize--;
+            }
+            node.protect = false;
+        }
+
+        private void moveFirst(Node head, Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            linkFirst(head, node);
+        }
+
+        private void linkFirst(Node head, Node node) {
+            node.prev = head;
+            node.next = head.next;
+            head.next.prev = node;
+            head.next = node;
+        }
+    }
+
+    public CachingPolyMethod(PolyMethod delegate, int maximumSize) {
+        this(delegate, maximumSize, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripes number of independently locked segments, rounded up to a power of two and capped so every
+     *                stripe holds at least one entry
+     */
+    public CachingPolyMethod(PolyMethod delegate, int maximumSize, int stripes) {
+        if (delegate == null) {
+            throw new NullPointerException();
+        }
+
+        if (maximumSize <= 0 || stripes <= 0) {
+            throw new IllegalArgumentException("Maximum size and stripes must be positive");
+        }
+
+        int count = 1;
+        while (count < stripes && count * 2 <= maximumSize) {
+            count <<= 1;
+        }
+
+        this.delegate = delegate;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder so the stripes add up to the maximum size exactly
+            this.stripes[i] = new Stripe(maximumSize / count + (i < maximumSize % count ? 1 : 0));
+        }
+        this.entries = new ConcurrentHashMap<>(maximumSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Derives the cache key from the arguments, by default an {@link ArgumentsKey} over all of them.
+     */
+    public CachingPolyMethod withKey(Function<Object[], ?> key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * Entries older than the TTL are treated as missing and loaded again.
+     */
+    public CachingPolyMethod withTtl(long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("TTL must be positive: " + ttl);
+        }
+
+        this.ttlNanos = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Entries hit after they are {@code after} old are reloaded in the background on the executor, while callers
+     * keep getting the current value. With a TTL, {@code after} should be shorter than it.
+     */
+    public CachingPolyMethod withRefreshAhead(long after, TimeUnit unit, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+
+        if (after <= 0) {
+            throw new IllegalArgumentException("Refresh time must be positive: " + after);
+        }
+
+        this.refreshNanos = unit.toNanos(after);
+        this.refreshExecutor = executor;
+        return this;
+    }
+
+    CachingPolyMethod withTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        Object k = key.apply(args);
+        Node node = entries.get(k);
+
+        if (node != null) {
+            long age = ticker.getAsLong() - node.loadedAt;
+            if (ttlNanos == 0 || age < ttlNanos) {
+                Object value = node.value;
+                hits.increment();
+                node.stripe.touch(node);
+                if (refreshNanos > 0 && age >= refreshNanos) {
+                    refresh(node, args);
+                }
+                return unmask(value);
+            }
+
+            node.stripe.remove(node);
+        }
+
+        misses.increment();
+        Object value = delegate.handle(args);
+        Stripe stripe = stripeFor(k);
+        stripe.put(new Node(k, stripe, value == null ? NULL : value, ticker.getAsLong()));
+        return value;
+    }
+
+    private void refresh(Node node, Object[] args) {
+        if (!node.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        Object[] copy = args == null ? null : args.clone();
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    Object value = delegate.handle(copy);
+                    node.value = value == null ? NULL : value;
+                    node.loadedAt = ticker.getAsLong();
+                } catch (Throwable t) {
+                    // keep serving the current value, the next hit will try again
+                } finally {
+                    node.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            node.refreshing.set(false);
+        }
+    }
+
+    private Stripe stripeFor(Object k) {
+        int h = k.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+
+    /**
+     * Removes every entry, counters are left as they are.
+     */
+    public void invalidateAll() {
+        for (Node node : entries.values()) {
+            node.stripe.remove(node);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Collapses concurrent calls with equal arguments into a single call to the delegate. The first caller for a key
+ * becomes the leader and calls the delegate, any caller arriving with the same key while that call is in flight
+ * waits for the leader's result, or rethrows the leader's exception, instead of calling the delegate itself.
+ * Calls for distinct keys only touch their own entry in a {@link ConcurrentHashMap}.
+ * <p>
+ * Followers share the leader's result object and exception instance. The delegate must not call back into this
+ * method with the same key on the same thread.
+ */
+public class CoalescingPolyMethod implements PolyMethod {
+
+    private final PolyMethod delegate;
+    private final Function<Object[], ?> key;
+    private final ConcurrentHashMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CoalescingPolyMethod(PolyMethod delegate) {
+        this(delegate, ArgumentsKey::of);
+    }
+
+    public CoalescingPolyMethod(PolyMethod delegate, Function<Object[], ?> key) {
+        if (delegate == null || key == null) {
+            throw new NullPointerException();
+        }
+
+        this.delegate = delegate;
+        this.key = key;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        Object k = key.apply(args);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(k, future);
+
+        if (leader != null) {
+            coalesced.increment();
+            try {
+                return leader.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+
+        Object result;
+        try {
+            result = delegate.handle(args);
+        } catch (Throwable t) {
+            inFlight.remove(k, future);
+            future.completeExceptionally(t);
+            throw t;
+        }
+
+        inFlight.remove(k, future);
+        future.complete(result);
+        return result;
+    }
+
+    /**
+     * Number of calls that were served by another caller's in-flight call.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+}
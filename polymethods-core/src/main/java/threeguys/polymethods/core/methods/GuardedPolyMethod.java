@@ -0,0 +1,368 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Circuit breaker and bulkhead around a primary {@link PolyMethod}, with every call that cannot or should not go to
+ * the primary routed to a fallback instead, typically the legacy implementation.
+ * <p>
+ * The outcomes of the last {@code windowSize} primary calls are kept in a ring. Once at least
+ * {@code minimumCalls} are recorded and either the failure rate or the slow call rate reaches its threshold the
+ * breaker opens, and all calls go to the fallback for the open duration. After that a limited number of trial
+ * calls go to the primary: if they pass the breaker closes with a fresh window, otherwise it opens again. A primary
+ * call that fails is answered by the fallback too.
+ * <p>
+ * Independently of the breaker, at most {@code maxConcurrent} calls are in the primary at once; calls over the
+ * limit go straight to the fallback rather than queueing. All state changes are compare-and-set on immutable phase
+ * objects, so the closed path takes no locks and allocates nothing.
+ */
+public class GuardedPolyMethod implements PolyMethod {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int RECORDED = 1;
+    private static final int FAILED = 2;
+    private static final int SLOW = 4;
+
+    private final PolyMethod primary;
+    private final PolyMethod fallback;
+    private final Semaphore bulkhead;
+    private final AtomicReference<Phase> phase = new AtomicReference<>();
+
+    private int windowSize = 100;
+    private int minimumCalls = 20;
+    private int failureRateThreshold = 50;
+    private int slowCallRateThreshold = 100;
+    private long slowCallNanos = Long.MAX_VALUE;
+    private long openNanos = TimeUnit.SECONDS.toNanos(30);
+    private int halfOpenCalls = 10;
+    private Predicate<Throwable> recordFailure = (t) -> true;
+    private LongSupplier ticker = System::nanoTime;
+
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Outcomes of the most recent calls. Counts are kept alongside the ring so rates never need a scan.
+     */
+    private static final class Window {
+        final AtomicIntegerArray outcomes;
+        final AtomicLong cursor = new AtomicLong();
+        final AtomicInteger recorded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger slow = new AtomicInteger();
+
+        Window(int size) {
+            this.outcomes = new AtomicIntegerArray(size);
+        }
+
+        void record(int outcome) {
+            int index = (int) (cursor.getAndIncrement() % outcomes.length());
+            int previous = outcomes.getAndSet(index, outcome);
+            if (previous == 0) {
+                recorded.incrementAndGet();
+            }
+
+            adjust(failed, previous, outcome, FAILED);
+            adjust(slow, previous, outcome, SLOW);
+        }
+
+        private static void adjust(AtomicInteger counter, int previous, int outcome, int flag) {
+            int delta = ((outcome & flag) != 0 ? 1 : 0) - ((previous & flag) != 0 ? 1 : 0);
+            if (delta != 0) {
+                counter.addAndGet(delta);
+            }
+        }
+    }
+
+    private static final class Phase {
+        final State state;
+        final Window window;
+        final long openedAt;
+        final AtomicInteger permits;
+        final AtomicInteger results;
+        final AtomicInteger failed;
+
+        private Phase(State state, Window window, long openedAt, int permits) {
+            this.state = state;
+            this.window = window;
+            this.openedAt = openedAt;
+            this.permits = new AtomicInteger(permits);
+            this.results = new AtomicInteger();
+            this.failed = new AtomicInteger();
+        }
+
+        static Phase closed(int windowSize) {
+            return new Phase(State.CLOSED, new Window(windowSize), 0, 0);
+        }
+
+        static Phase open(long now) {
+            return new Phase(State.OPEN, null, now, 0);
+        }
+
+        static Phase halfOpen(int permits) {
+            return new Phase(State.HALF_OPEN, null, 0, permits);
+        }
+    }
+
+    /**
+     * @param maxConcurrent bulkhead size, the most calls allowed in the primary at once
+     */
+    public GuardedPolyMethod(PolyMethod primary, PolyMethod fallback, int maxConcurrent) {
+        if (primary == null || fallback == null) {
+            throw new NullPointerException();
+        }
+
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("Concurrency limit must be positive: " + maxConcurrent);
+        }
+
+        this.primary = primary;
+        this.fallback = fallback;
+        this.bulkhead = new Semaphore(maxConcurrent);
+        this.phase.set(Phase.closed(windowSize));
+    }
+
+    /**
+     * @param windowSize   number of recent calls the rates are computed over
+     * @param minimumCalls calls needed in the window before the breaker may open
+     */
+    public GuardedPolyMethod withWindow(int windowSize, int minimumCalls) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("Invalid window of " + windowSize + " with minimum " + minimumCalls);
+        }
+
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.phase.set(Phase.closed(windowSize));
+        return this;
+    }
+
+    /**
+     * @param percent failure rate, between 1 and 100, at which the breaker opens
+     */
+    public GuardedPolyMethod withFailureRateThreshold(int percent) {
+        this.failureRateThreshold = checkPercent(percent);
+        return this;
+    }
+
+    /**
+     * Calls taking at least {@code duration} count as slow, and the breaker opens once the share of slow calls
+     * reaches {@code percent}.
+     */
+    public GuardedPolyMethod withSlowCalls(long duration, TimeUnit unit, int percent) {
+        this.slowCallNanos = unit.toNanos(duration);
+        this.slowCallRateThreshold = checkPercent(percent);
+        return this;
+    }
+
+    /**
+     * @param duration how long the breaker stays open before letting trial calls through
+     * @param trials   number of trial calls that decide whether to close again
+     */
+    public GuardedPolyMethod withOpenDuration(long duration, TimeUnit unit, int trials) {
+        if (trials <= 0) {
+            throw new IllegalArgumentException("Trial calls must be positive: " + trials);
+        }
+
+        this.openNanos = unit.toNanos(duration);
+        this.halfOpenCalls = trials;
+        return this;
+    }
+
+    /**
+     * Exceptions not matching the predicate are rethrown to the caller and count as successful calls, by default
+     * every exception counts as a failure.
+     */
+    public GuardedPolyMethod withFailurePredicate(Predicate<Throwable> recordFailure) {
+        if (recordFailure == null) {
+            throw new NullPointerException();
+        }
+
+        this.recordFailure = recordFailure;
+        return this;
+    }
+
+    GuardedPolyMethod withTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        Phase current = acquire();
+        if (current == null) {
+            fallbacks.increment();
+            return fallback.handle(args);
+        }
+
+        if (!bulkhead.tryAcquire()) {
+            if (current.state == State.HALF_OPEN) {
+                current.permits.incrementAndGet();
+            }
+            rejected.increment();
+            fallbacks.increment();
+            return fallback.handle(args);
+        }
+
+        long start = ticker.getAsLong();
+        try {
+            Object result = primary.handle(args);
+            record(current, outcome(start, false));
+            return result;
+
+        } catch (Throwable t) {
+            if (!recordFailure.test(t)) {
+                record(current, outcome(start, false));
+                throw t;
+            }
+
+            record(current, outcome(start, true));
+            fallbacks.increment();
+            return fallback.handle(args);
+
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Returns the phase a primary call is made under, or null when the call must go to the fallback.
+     */
+    private Phase acquire() {
+        while (true) {
+            Phase current = phase.get();
+            switch (current.state) {
+                case CLOSED:
+                    return current;
+
+                case OPEN:
+                    if (ticker.getAsLong() - current.openedAt < openNanos) {
+                        return null;
+                    }
+                    phase.compareAndSet(current, Phase.halfOpen(halfOpenCalls));
+                    break;
+
+                default:
+                    return current.permits.decrementAndGet() >= 0 ? current : null;
+            }
+        }
+    }
+
+    private int outcome(long start, boolean failed) {
+        int outcome = RECORDED;
+        if (failed) {
+            outcome |= FAILED;
+        }
+        if (ticker.getAsLong() - start >= slowCallNanos) {
+            outcome |= SLOW;
+        }
+        return outcome;
+    }
+
+    private void record(Phase current, int outcome) {
+        if (current.state == State.CLOSED) {
+            Window window = current.window;
+            window.record(outcome);
+
+            int recorded = window.recorded.get();
+            if (recorded >= minimumCalls && (tripped(window.failed.get(), recorded, failureRateThreshold)
+                    || tripped(window.slow.get(), recorded, slowCallRateThreshold))) {
+                phase.compareAndSet(current, Phase.open(ticker.getAsLong()));
+            }
+            return;
+        }
+
+        if ((outcome & (FAILED | SLOW)) != 0) {
+            current.failed.incrementAndGet();
+        }
+
+        if (current.results.incrementAndGet() == halfOpenCalls) {
+            Phase next = tripped(current.failed.get(), halfOpenCalls, Math.min(failureRateThreshold, slowCallRateThreshold))
+                    ? Phase.open(ticker.getAsLong()) : Phase.closed(windowSize);
+            phase.compareAndSet(current, next);
+        }
+    }
+
+    private static boolean tripped(int count, int total, int thresholdPercent) {
+        return count * 100L >= (long) total * thresholdPercent;
+    }
+
+    private static int checkPercent(int percent) {
+        if (percent < 1 || percent > 100) {
+            throw new IllegalArgumentException("Percentage must be between 1 and 100: " + percent);
+        }
+        return percent;
+    }
+
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * Failure rate of the current window as a percentage, or -1 when the breaker is not closed.
+     */
+    public float getFailureRate() {
+        Window window = phase.get().window;
+        if (window == null) {
+            return -1;
+        }
+        int recorded = window.recorded.get();
+        return recorded == 0 ? 0 : window.failed.get() * 100f / recorded;
+    }
+
+    /**
+     * Slow call rate of the current window as a percentage, or -1 when the breaker is not closed.
+     */
+    public float getSlowCallRate() {
+        Window window = phase.get().window;
+        if (window == null) {
+            return -1;
+        }
+        int recorded = window.recorded.get();
+        return recorded == 0 ? 0 : window.slow.get() * 100f / recorded;
+    }
+
+    public int getAvailableConcurrency() {
+        return bulkhead.availablePermits();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Number of calls sent to the fallback because the bulkhead was full.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+}
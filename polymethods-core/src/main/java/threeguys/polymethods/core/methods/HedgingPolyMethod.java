@@ -0,0 +1,249 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.core.metrics.LatencyHistogram;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cuts tail latency by hedging slow calls. The primary attempt runs on the executor, and if it has not answered
+ * within the hedge delay a second attempt is started with the hedge implementation, which may be the primary
+ * itself. The first successful attempt wins and the other is cancelled with an interrupt. The call only fails once
+ * every attempt started has failed.
+ * <p>
+ * The delay is either fixed, or learned as a percentile of the latencies of recent attempts. Hedges are capped at a
+ * percentage of calls so a slow backend does not get twice the load when it can least afford it: every call earns
+ * that percentage of a hedge, and the savings are capped at {@link #MAX_SAVED_HEDGES}, so a long quiet spell does
+ * not pay for a burst of hedges once the backend slows down.
+ */
+public class HedgingPolyMethod implements PolyMethod {
+
+    public static final int MAX_SAVED_HEDGES = 10;
+
+    private static final int MIN_SAMPLES = 100;
+    private static final int RECOMPUTE_EVERY = 128;
+    private static final int WINDOW = RECOMPUTE_EVERY * 8;
+
+    private final PolyMethod primary;
+    private final PolyMethod hedge;
+    private final ExecutorService executor;
+
+    private volatile long delayNanos;
+    private double percentile;
+    private long minimumDelayNanos;
+    private int budgetPercent = 10;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile LatencyHistogram recent = new LatencyHistogram();
+    private final AtomicInteger samples = new AtomicInteger();
+    // In hundredths of a hedge
+    private final AtomicLong budget = new AtomicLong();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    private static final class Call {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicBoolean won = new AtomicBoolean();
+        volatile Throwable failure;
+    }
+
+    /**
+     * @param executor runs every attempt, it needs enough threads for two attempts per concurrent call
+     */
+    public HedgingPolyMethod(PolyMethod primary, PolyMethod hedge, ExecutorService executor, long delay, TimeUnit unit) {
+        if (primary == null || hedge == null || executor == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        if (delay < 0) {
+            throw new IllegalArgumentException("Delay cannot be negative: " + delay);
+        }
+
+        this.primary = primary;
+        this.hedge = hedge;
+        this.executor = executor;
+        this.delayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Learns the hedge delay as the given latency percentile of recent attempts, never going below the minimum. The
+     * delay given to the constructor is used until enough attempts have been seen. Older attempts are forgotten
+     * every {@code 1024} attempts, so the delay follows the backend when it speeds up again.
+     */
+    public HedgingPolyMethod withAdaptiveDelay(double percentile, long minimum, TimeUnit unit) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+
+        this.percentile = percentile;
+        this.minimumDelayNanos = unit.toNanos(minimum);
+        return this;
+    }
+
+    /**
+     * @param percent most calls, as a percentage of all calls, that may be hedged, up to a burst of
+     *                {@link #MAX_SAVED_HEDGES} saved up while calls were fast
+     */
+    public HedgingPolyMethod withBudget(int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Budget must be between 0 and 100: " + percent);
+        }
+
+        this.budgetPercent = percent;
+        return this;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        calls.increment();
+        if (budgetPercent > 0) {
+            budget.getAndUpdate((saved) -> Math.min(MAX_SAVED_HEDGES * 100L, saved + budgetPercent));
+        }
+
+        Call call = new Call();
+        CompletableFuture<Object> result = call.result;
+        Future<?> first = executor.submit(() -> attempt(primary, args, call, false));
+        Future<?> second = null;
+
+        try {
+            try {
+                return result.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // too slow, hedge if the budget allows
+            }
+
+            if (!result.isDone() && withinBudget()) {
+                call.pending.incrementAndGet();
+                try {
+                    second = executor.submit(() -> attempt(hedge, args, call, true));
+                    hedges.increment();
+                } catch (RejectedExecutionException e) {
+                    // No room for the hedge, the primary is still worth waiting for
+                    budget.addAndGet(100);
+                    if (call.pending.decrementAndGet() == 0) {
+                        result.completeExceptionally(call.failure);
+                    }
+                }
+            }
+
+            return result.get();
+
+        } catch (ExecutionException e) {
+            throw e.getCause();
+
+        } finally {
+            first.cancel(true);
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+
+    private void attempt(PolyMethod method, Object[] args, Call call, boolean hedged) {
+        long start = System.nanoTime();
+        try {
+            Object value = method.handle(args);
+            record(System.nanoTime() - start);
+            if (call.won.compareAndSet(false, true)) {
+                // Counted before completing so the caller already sees it
+                if (hedged) {
+                    hedgeWins.increment();
+                }
+                call.result.complete(value);
+            }
+
+        } catch (Throwable t) {
+            // Cancelled attempts count too, they took at least this long, and leaving them out would pull the
+            // learned delay below the real tail
+            record(System.nanoTime() - start);
+            call.failure = t;
+            if (call.pending.decrementAndGet() == 0) {
+                call.result.completeExceptionally(t);
+            }
+        }
+    }
+
+    private boolean withinBudget() {
+        long saved;
+        do {
+            saved = budget.get();
+            if (saved < 100) {
+                return false;
+            }
+        } while (!budget.compareAndSet(saved, saved - 100));
+        return true;
+    }
+
+    private void record(long nanos) {
+        latency.record(nanos);
+        if (percentile > 0) {
+            LatencyHistogram window = recent;
+            window.record(nanos);
+
+            int seen = samples.incrementAndGet();
+            if (seen % RECOMPUTE_EVERY == 0) {
+                LatencyHistogram.Snapshot snapshot = window.snapshot();
+                if (snapshot.getCount() >= MIN_SAMPLES) {
+                    delayNanos = Math.max(minimumDelayNanos, snapshot.getValueAtPercentile(percentile));
+                }
+                if (seen % WINDOW == 0) {
+                    recent = new LatencyHistogram();
+                }
+            }
+        }
+    }
+
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Number of hedged calls answered by the hedge rather than the primary.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * Latency of every attempt since the method was created.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Delegates to a method on a target object like {@link DelegatingPolyMethod}, but binds the target once into a
+ * {@link MethodHandle} instead of calling {@link Method#invoke(Object, Object...)} on every request. Access is
+ * checked once at construction, and exceptions thrown by the target propagate as-is rather than wrapped in an
+ * {@link java.lang.reflect.InvocationTargetException}.
+ */
+public class MethodHandlePolyMethod<T> implements PolyMethod {
+
+    private static final MethodType GENERIC_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+    private final MethodHandle handle;
+
+    public MethodHandlePolyMethod(T delegate, Method method) throws IllegalAccessException {
+        MethodHandle target = MethodHandles.lookup().unreflect(method);
+        if (!Modifier.isStatic(method.getModifiers())) {
+            target = target.bindTo(delegate);
+        }
+
+        this.handle = target.asSpreader(Object[].class, method.getParameterCount()).asType(GENERIC_TYPE);
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        return (Object) handle.invokeExact(args);
+    }
+
+}
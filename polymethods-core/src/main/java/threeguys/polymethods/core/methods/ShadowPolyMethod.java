@@ -0,0 +1,203 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * Returns the outcome of the primary {@link PolyMethod} while running a shadow implementation with the same
+ * arguments in the background, so a replacement can be verified against production traffic before cutting over.
+ * <p>
+ * The shadow is handed to the executor once the primary has finished, and its outcome is compared to the primary's:
+ * results with the comparator, exceptions by class. When the executor rejects the work it is dropped and counted,
+ * never retried or queued, so use a bounded executor such as {@link #boundedExecutor(String, int, int)}. Note the
+ * shadow sees the same argument objects as the primary, only the array itself is copied.
+ */
+public class ShadowPolyMethod implements PolyMethod {
+
+    /**
+     * Outcome of one side of a shadowed call, either a result or the exception thrown.
+     */
+    public static final class Outcome {
+        private final Object result;
+        private final Throwable error;
+        private final long nanos;
+
+        Outcome(Object result, Throwable error, long nanos) {
+            this.result = result;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    @FunctionalInterface
+    public interface MismatchListener {
+        void onMismatch(Object[] args, Outcome primary, Outcome shadow);
+    }
+
+    private final PolyMethod primary;
+    private final PolyMethod shadow;
+    private final Executor executor;
+    private final BiPredicate<Object, Object> comparator;
+    private final MismatchListener listener;
+
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder latencyDeltaNanos = new LongAdder();
+
+    /**
+     * Creates a daemon thread pool with a fixed number of threads and a bounded queue, which rejects work once the
+     * queue is full rather than blocking the caller.
+     */
+    public static ThreadPoolExecutor boundedExecutor(String name, int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), (runnable) -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public ShadowPolyMethod(PolyMethod primary, PolyMethod shadow, Executor executor) {
+        this(primary, shadow, executor, Objects::deepEquals, null);
+    }
+
+    /**
+     * @param comparator tests whether the primary and shadow results match
+     * @param listener   notified on the executor thread for every mismatch, may be null
+     */
+    public ShadowPolyMethod(PolyMethod primary, PolyMethod shadow, Executor executor,
+                            BiPredicate<Object, Object> comparator, MismatchListener listener) {
+
+        if (primary == null || shadow == null || executor == null || comparator == null) {
+            throw new NullPointerException();
+        }
+
+        this.primary = primary;
+        this.shadow = shadow;
+        this.executor = executor;
+        this.comparator = comparator;
+        this.listener = listener;
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        Object[] copy = args == null ? null : args.clone();
+
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = primary.handle(args);
+        } catch (Throwable t) {
+            submit(copy, new Outcome(null, t, System.nanoTime() - start));
+            throw t;
+        }
+
+        submit(copy, new Outcome(result, null, System.nanoTime() - start));
+        return result;
+    }
+
+    private void submit(Object[] args, Outcome expected) {
+        try {
+            executor.execute(() -> compare(args, expected));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    private void compare(Object[] args, Outcome expected) {
+        long start = System.nanoTime();
+        Outcome actual;
+        try {
+            actual = new Outcome(shadow.handle(args), null, System.nanoTime() - start);
+        } catch (Throwable t) {
+            actual = new Outcome(null, t, System.nanoTime() - start);
+        }
+
+        latencyDeltaNanos.add(actual.nanos - expected.nanos);
+        if (matches(expected, actual)) {
+            matched.increment();
+            return;
+        }
+
+        mismatched.increment();
+        if (listener != null) {
+            try {
+                listener.onMismatch(args, expected, actual);
+            } catch (RuntimeException e) {
+                // a broken listener must not take down the shadow thread
+            }
+        }
+    }
+
+    private boolean matches(Outcome expected, Outcome actual) {
+        if (expected.error != null || actual.error != null) {
+            return expected.error != null && actual.error != null
+                    && expected.error.getClass() == actual.error.getClass();
+        }
+
+        try {
+            return comparator.test(expected.result, actual.result);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    public long getMismatched() {
+        return mismatched.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Average of shadow latency minus primary latency over every compared call, in nanoseconds.
+     */
+    public double getMeanLatencyDeltaNanos() {
+        long compared = matched.sum() + mismatched.sum();
+        return compared == 0 ? 0 : (double) latencyDeltaNanos.sum() / compared;
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Routes each call to either a legacy or a replacement {@link PolyMethod}, sending roughly
+ * {@code weight / MAX_WEIGHT} of calls to the replacement. The weight can be changed at any time while the
+ * method is in use, so a migration can be dialled up (or rolled back) without rebuilding the {@code PolyClass}.
+ * <p>
+ * Without a key function each call is routed at random. With one, the key derived from the arguments is hashed
+ * into the same range so a given key always takes the same path for a given weight, and raising the weight only
+ * ever moves keys from the legacy method to the replacement.
+ */
+public class SplittingPolyMethod implements PolyMethod {
+
+    public static final int MAX_WEIGHT = 10000;
+
+    private final PolyMethod legacy;
+    private final PolyMethod replacement;
+    private final Function<Object[], ?> key;
+
+    private volatile int weight;
+
+    public SplittingPolyMethod(PolyMethod legacy, PolyMethod replacement, int weight) {
+        this(legacy, replacement, weight, null);
+    }
+
+    /**
+     * @param weight share of calls sent to the replacement, out of {@link #MAX_WEIGHT}
+     * @param key    derives a sticky routing key from the arguments, or null to route every call at random
+     */
+    public SplittingPolyMethod(PolyMethod legacy, PolyMethod replacement, int weight, Function<Object[], ?> key) {
+        if (legacy == null || replacement == null) {
+            throw new NullPointerException();
+        }
+
+        this.legacy = legacy;
+        this.replacement = replacement;
+        this.key = key;
+        setWeight(weight);
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        if (weight < 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Weight must be between 0 and " + MAX_WEIGHT + ", got: " + weight);
+        }
+        this.weight = weight;
+    }
+
+    /**
+     * Sets the share of calls sent to the replacement as a percentage, e.g. {@code 12.5}.
+     */
+    public void setPercentage(double percentage) {
+        setWeight((int) Math.round(percentage * MAX_WEIGHT / 100.0));
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        return choose(args).handle(args);
+    }
+
+    PolyMethod choose(Object[] args) {
+        int current = weight;
+        if (current == 0) {
+            return legacy;
+        } else if (current == MAX_WEIGHT) {
+            return replacement;
+        }
+
+        return bucket(args) < current ? replacement : legacy;
+    }
+
+    private int bucket(Object[] args) {
+        if (key == null) {
+            return ThreadLocalRandom.current().nextInt(MAX_WEIGHT);
+        }
+
+        Object value = key.apply(args);
+        if (value == null) {
+            return ThreadLocalRandom.current().nextInt(MAX_WEIGHT);
+        }
+
+        // Spread the hash first, plenty of hashCode implementations are weak in the low bits
+        int h = value.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (int) ((h & 0xFFFFFFFFL) * MAX_WEIGHT >>> 32);
+    }
+
+}
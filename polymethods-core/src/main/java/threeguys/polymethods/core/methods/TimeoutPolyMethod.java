@@ -0,0 +1,175 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import threeguys.polymethods.core.AsyncPolyMethod;
+import threeguys.polymethods.core.PolyMethod;
+import threeguys.polymethods.core.timer.HashedWheelTimer;
+import threeguys.polymethods.core.timer.Timeout;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Bounds how long a call to a {@link PolyMethod} may take, using a {@link HashedWheelTimer} rather than a scheduled
+ * task per call. When the deadline passes the calling thread is interrupted and the call fails with a
+ * {@link TimeoutException}, so the delegate has to respond to interrupts for the timeout to cut it short. Use
+ * {@link #of(PolyMethod, long, TimeUnit)} so an {@link AsyncPolyMethod} instead gets its future completed with the
+ * {@link TimeoutException}, without blocking or interrupting anyone.
+ */
+public class TimeoutPolyMethod implements PolyMethod {
+
+    private final PolyMethod delegate;
+    private final long timeoutNanos;
+    private final HashedWheelTimer timer;
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int INTERRUPTING = 2;
+    private static final int TIMED_OUT = 3;
+
+    /**
+     * One synchronous call. The timer and the caller race to move it out of RUNNING, and the caller waits out
+     * INTERRUPTING so it can clear the interrupt before returning, never leaving it set for unrelated code.
+     */
+    private static final class Call implements Runnable {
+        private static final AtomicIntegerFieldUpdater<Call> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Call.class, "state");
+
+        private final Thread thread = Thread.currentThread();
+        private volatile int state = RUNNING;
+
+        @Override
+        public void run() {
+            if (STATE.compareAndSet(this, RUNNING, INTERRUPTING)) {
+                thread.interrupt();
+                state = TIMED_OUT;
+            }
+        }
+
+        boolean finish() {
+            if (STATE.compareAndSet(this, RUNNING, DONE)) {
+                return true;
+            }
+
+            while (state == INTERRUPTING) {
+                Thread.yield();
+            }
+            Thread.interrupted();
+            return false;
+        }
+    }
+
+    protected TimeoutPolyMethod(PolyMethod delegate, long timeout, TimeUnit unit, HashedWheelTimer timer) {
+        if (delegate == null || unit == null || timer == null) {
+            throw new NullPointerException();
+        }
+
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+
+        this.delegate = delegate;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.timer = timer;
+    }
+
+    public static PolyMethod of(PolyMethod delegate, long timeout, TimeUnit unit) {
+        return of(delegate, timeout, unit, HashedWheelTimer.shared());
+    }
+
+    public static PolyMethod of(PolyMethod delegate, long timeout, TimeUnit unit, HashedWheelTimer timer) {
+        if (delegate instanceof AsyncPolyMethod) {
+            return new Async((AsyncPolyMethod) delegate, timeout, unit, timer);
+        }
+        return new TimeoutPolyMethod(delegate, timeout, unit, timer);
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        Call call = new Call();
+        Timeout timeout = timer.newTimeout(call, timeoutNanos, TimeUnit.NANOSECONDS);
+
+        Object result;
+        try {
+            result = delegate.handle(args);
+        } catch (Throwable t) {
+            if (call.finish()) {
+                timeout.cancel();
+                throw t;
+            }
+            throw timedOut(t);
+        }
+
+        if (call.finish()) {
+            timeout.cancel();
+            return result;
+        }
+        throw timedOut(null);
+    }
+
+    protected TimeoutException timedOut(Throwable cause) {
+        TimeoutException e = new TimeoutException("Call timed out after "
+                + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
+    }
+
+    private static final class Async extends TimeoutPolyMethod implements AsyncPolyMethod {
+
+        private final AsyncPolyMethod async;
+
+        Async(AsyncPolyMethod delegate, long timeout, TimeUnit unit, HashedWheelTimer timer) {
+            super(delegate, timeout, unit, timer);
+            this.async = delegate;
+        }
+
+        @Override
+        public CompletableFuture<?> handleAsync(Object[] args) throws Throwable {
+            CompletableFuture<?> future = async.handleAsync(args);
+            CompletableFuture<Object> result = new CompletableFuture<>();
+
+            Timeout timeout = super.timer.newTimeout(() -> {
+                if (result.completeExceptionally(timedOut(null))) {
+                    future.cancel(true);
+                }
+            }, super.timeoutNanos, TimeUnit.NANOSECONDS);
+
+            future.whenComplete((value, failure) -> {
+                timeout.cancel();
+                if (failure instanceof CompletionException && failure.getCause() != null) {
+                    result.completeExceptionally(failure.getCause());
+                } else if (failure != null) {
+                    result.completeExceptionally(failure);
+                } else {
+                    result.complete(value);
+                }
+            });
+            return result;
+        }
+
+        @Override
+        public Object handle(Object[] args) throws Throwable {
+            return AsyncPolyMethod.super.handle(args);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.metrics;
+
+import threeguys.polymethods.core.AsyncPolyMethod;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records the call count, errors and latency of a {@link PolyMethod} into its {@link MethodMetrics}. Use
+ * {@link #wrap(PolyMethod, MethodMetrics)} so an {@link AsyncPolyMethod} stays asynchronous and is timed until
+ * its future completes.
+ */
+public class InstrumentedPolyMethod implements PolyMethod {
+
+    private final PolyMethod delegate;
+    private final MethodMetrics metrics;
+
+    protected InstrumentedPolyMethod(PolyMethod delegate, MethodMetrics metrics) {
+        if (delegate == null || metrics == null) {
+            throw new NullPointerException();
+        }
+
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public static PolyMethod wrap(PolyMethod delegate, MethodMetrics metrics) {
+        if (delegate instanceof AsyncPolyMethod) {
+            return new Async((AsyncPolyMethod) delegate, metrics);
+        }
+        return new InstrumentedPolyMethod(delegate, metrics);
+    }
+
+    @Override
+    public Object handle(Object[] args) throws Throwable {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = delegate.handle(args);
+            failed = false;
+            return result;
+        } finally {
+            metrics.record(System.nanoTime() - start, failed);
+        }
+    }
+
+    public MethodMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static final class Async extends InstrumentedPolyMethod implements AsyncPolyMethod {
+
+        private final AsyncPolyMethod async;
+
+        Async(AsyncPolyMethod delegate, MethodMetrics metrics) {
+            super(delegate, metrics);
+            this.async = delegate;
+        }
+
+        @Override
+        public CompletableFuture<?> handleAsync(Object[] args) throws Throwable {
+            long start = System.nanoTime();
+            CompletableFuture<?> future;
+            try {
+                future = async.handleAsync(args);
+            } catch (Throwable t) {
+                getMetrics().record(System.nanoTime() - start, true);
+                throw t;
+            }
+
+            future.whenComplete((result, failure) -> getMetrics().record(System.nanoTime() - start, failure != null));
+            return future;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes every method of a {@link MetricsRegistry} as a {@link MethodMetricsMXBean} named
+ * {@code threeguys.polymethods:type=PolyMethod,name="<method>"}, including methods added to the registry later.
+ */
+public class JmxMetricsExporter {
+
+    public static final String DOMAIN = "threeguys.polymethods";
+
+    private final MBeanServer server;
+
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsExporter(MBeanServer server) {
+        if (server == null) {
+            throw new NullPointerException();
+        }
+        this.server = server;
+    }
+
+    public void export(MetricsRegistry registry) {
+        registry.addListener(this::register);
+    }
+
+    public static ObjectName objectName(String method) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=PolyMethod,name=" + ObjectName.quote(method));
+    }
+
+    private void register(MethodMetrics metrics) {
+        try {
+            server.registerMBean(new View(metrics), objectName(metrics.getName()));
+        } catch (InstanceAlreadyExistsException e) {
+            // already exported by another registry or exporter
+        } catch (JMException e) {
+            throw new IllegalStateException("Unable to export metrics for: " + metrics.getName(), e);
+        }
+    }
+
+    private static final class View implements MethodMetricsMXBean {
+
+        private final MethodMetrics metrics;
+
+        View(MethodMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public String getName() {
+            return metrics.getName();
+        }
+
+        @Override
+        public long getCalls() {
+            return metrics.getCalls();
+        }
+
+        @Override
+        public long getErrors() {
+            return metrics.getErrors();
+        }
+
+        @Override
+        public double getMeanNanos() {
+            return metrics.getLatency().snapshot().getMean();
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return metrics.getLatency().snapshot().getMax();
+        }
+
+        @Override
+        public long getP50Nanos() {
+            return metrics.getLatency().snapshot().getValueAtPercentile(50);
+        }
+
+        @Override
+        public long getP99Nanos() {
+            return metrics.getLatency().snapshot().getValueAtPercentile(99);
+        }
+
+        @Override
+        public long getP999Nanos() {
+            return metrics.getLatency().snapshot().getValueAtPercentile(99.9);
+        }
+    }
+
+}
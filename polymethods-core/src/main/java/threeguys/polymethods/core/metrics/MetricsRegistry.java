@@ -0,0 +1,93 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.metrics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Holds the {@link MethodMetrics} of every instrumented method by name. Listeners are told about each new entry,
+ * which is how bridges such as {@link JmxMetricsExporter} pick up methods registered after they were attached.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, MethodMetrics> metrics = new ConcurrentHashMap<>();
+    private final List<Consumer<MethodMetrics>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Name used for a method's metrics: declaring class, method name and parameter types, e.g.
+     * {@code com.example.Service.lookup(String,int)}.
+     */
+    public static String nameOf(Method method) {
+        StringBuilder name = new StringBuilder(method.getDeclaringClass().getName())
+                .append('.').append(method.getName()).append('(');
+        Class<?>[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(params[i].getSimpleName());
+        }
+        return name.append(')').toString();
+    }
+
+    public MethodMetrics metrics(String name) {
+        MethodMetrics existing = metrics.get(name);
+        if (existing != null) {
+            return existing;
+        }
+
+        MethodMetrics created = new MethodMetrics(name);
+        existing = metrics.putIfAbsent(name, created);
+        if (existing != null) {
+            return existing;
+        }
+
+        for (Consumer<MethodMetrics> listener : listeners) {
+            listener.accept(created);
+        }
+        return created;
+    }
+
+    public MethodMetrics metrics(Method method) {
+        return metrics(nameOf(method));
+    }
+
+    public MethodMetrics get(String name) {
+        return metrics.get(name);
+    }
+
+    public Collection<MethodMetrics> getAll() {
+        return Collections.unmodifiableList(new ArrayList<>(metrics.values()));
+    }
+
+    /**
+     * Calls the listener for every existing entry and then for every entry created afterwards.
+     */
+    public void addListener(Consumer<MethodMetrics> listener) {
+        listeners.add(listener);
+        for (MethodMetrics existing : metrics.values()) {
+            listener.accept(existing);
+        }
+    }
+
+}
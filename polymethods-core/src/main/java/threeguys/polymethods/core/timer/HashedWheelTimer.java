@@ -0,0 +1,290 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of short-lived timeouts, most of which are cancelled before they fire. Scheduling is an
+ * allocation and a lock-free queue offer, cancelling is a single compare-and-set, and a single worker thread moves
+ * new timeouts into a wheel of buckets and expires one bucket per tick. Tasks are accurate to about one tick and
+ * run on the worker thread, so they must be quick and must not block.
+ */
+public class HashedWheelTimer implements AutoCloseable {
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final Thread worker;
+
+    private final AtomicInteger workerState = new AtomicInteger();
+    private final long startTime = System.nanoTime();
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_SHUTDOWN = 2;
+
+    private static final class Holder {
+        static final HashedWheelTimer SHARED = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    private static final class Entry implements Timeout {
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        final HashedWheelTimer timer;
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Entry next;
+        Entry prev;
+
+        private volatile int state = ST_INIT;
+
+        Entry(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.pending.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            timer.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // one broken task must not stop the wheel
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of entries, only touched by the worker thread.
+     */
+    private static final class Bucket {
+        Entry head;
+        Entry tail;
+
+        void add(Entry entry) {
+            if (head == null) {
+                head = entry;
+                tail = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        void expire() {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.isCancelled()) {
+                    remove(entry);
+                } else if (entry.rounds <= 0) {
+                    remove(entry);
+                    entry.expire();
+                } else {
+                    entry.rounds--;
+                }
+                entry = next;
+            }
+        }
+
+        private void remove(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            } else {
+                tail = entry.prev;
+            }
+
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+
+    /**
+     * Timer shared by everything in the JVM that does not need its own, with a 1ms tick and 1024 buckets.
+     */
+    public static HashedWheelTimer shared() {
+        return Holder.SHARED;
+    }
+
+    /**
+     * @param tick       resolution of the timer
+     * @param wheelSize  number of buckets, rounded up to a power of two; timeouts further out than a full turn of the
+     *                   wheel stay in their bucket for several turns
+     */
+    public HashedWheelTimer(long tick, TimeUnit unit, int wheelSize) {
+        if (unit == null) {
+            throw new NullPointerException();
+        }
+
+        if (tick <= 0 || wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid tick " + tick + " or wheel size " + wheelSize);
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        this.worker = new Thread(this::run, "polymethods-timer-" + THREADS.incrementAndGet());
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay has passed, unless it is cancelled first.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null || unit == null) {
+            throw new NullPointerException();
+        }
+
+        start();
+
+        // Deadlines are relative to the creation of the timer so they stay positive
+        Entry entry = new Entry(this, task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime);
+        pending.incrementAndGet();
+        added.offer(entry);
+        return entry;
+    }
+
+    /**
+     * Number of timeouts that have neither expired nor been cancelled.
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the worker thread, timeouts that have not fired yet never will.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (this == Holder.SHARED) {
+            throw new IllegalStateException("The shared timer cannot be closed");
+        }
+
+        if (workerState.getAndSet(WORKER_SHUTDOWN) == WORKER_STARTED) {
+            LockSupport.unpark(worker);
+            worker.join();
+        }
+    }
+
+    private void start() {
+        switch (workerState.get()) {
+            case WORKER_INIT:
+                if (workerState.compareAndSet(WORKER_INIT, WORKER_STARTED)) {
+                    worker.start();
+                }
+                break;
+
+            case WORKER_STARTED:
+                break;
+
+            default:
+                throw new IllegalStateException("Timer is closed");
+        }
+    }
+
+    private void run() {
+        long tick = (System.nanoTime() - startTime) / tickNanos;
+        while (workerState.get() == WORKER_STARTED) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (workerState.get() != WORKER_STARTED) {
+                    return;
+                }
+            }
+
+            transferAdded(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferAdded(long tick) {
+        // Bounded so a flood of new timeouts cannot starve the wheel
+        for (int i = 0; i < 100000; i++) {
+            Entry entry = added.poll();
+            if (entry == null) {
+                return;
+            }
+
+            if (entry.isCancelled()) {
+                continue;
+            }
+
+            long ticks = Math.max(entry.deadline / tickNanos, tick);
+            entry.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAsyncPolyMethod {
+
+    public interface MockAsyncService {
+        CompletableFuture<String> future(String arg);
+        CompletionStage<String> stage(String arg);
+        String sync(String arg);
+    }
+
+    private static MockAsyncService proxy(AsyncPolyMethod method) throws Throwable {
+        PolyClass clazz = PolyClassBuilder.builder()
+                .withTarget(MockAsyncService.class)
+                .withMethod("future", new Class<?>[]{ String.class }, method)
+                .withMethod("stage", new Class<?>[]{ String.class }, method)
+                .withMethod("sync", new Class<?>[]{ String.class }, method)
+                .build();
+
+        return (MockAsyncService) Proxy.newProxyInstance(MockAsyncService.class.getClassLoader(),
+                clazz.getInterfaces(), clazz);
+    }
+
+    @Test
+    public void futureIsNotBlocked() throws Throwable {
+        CompletableFuture<Object> pending = new CompletableFuture<>();
+        MockAsyncService service = proxy((args) -> pending);
+
+        CompletableFuture<String> future = service.future("dude");
+        CompletionStage<String> stage = service.stage("dude");
+        assertFalse(future.isDone());
+
+        pending.complete("done");
+        assertEquals("done", future.get(1, TimeUnit.SECONDS));
+        assertEquals("done", stage.toCompletableFuture().get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void syncMethodBlocks() throws Throwable {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MockAsyncService service = proxy(AsyncPolyMethod.of((args) -> {
+                Thread.sleep(50);
+                return "slept: " + args[0];
+            }, executor));
+
+            assertEquals("slept: whoa", service.sync("whoa"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failures() throws Throwable {
+        CompletableFuture<Object> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new MockCheckedException("async failure"));
+        MockAsyncService service = proxy((args) -> failed);
+
+        try {
+            service.future("dude").get();
+            fail("Expected the future to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MockCheckedException);
+        }
+
+        try {
+            service.sync("dude");
+            fail("Expected the call to fail");
+        } catch (Exception e) {
+            // Proxy wraps undeclared checked exceptions, what matters is the original cause is not hidden
+            assertTrue(e.getCause() instanceof MockCheckedException);
+        }
+    }
+
+    @Test
+    public void generatedClass() throws Throwable {
+        CompletableFuture<Object> pending = new CompletableFuture<>();
+        MockAsyncService service = PolyClassBuilder.builder()
+                .withTarget(MockAsyncService.class)
+                .withMethod("future", new Class<?>[]{ String.class }, (AsyncPolyMethod) (args) -> pending)
+                .withMethod("sync", new Class<?>[]{ String.class }, (AsyncPolyMethod) (args) -> pending)
+                .buildGenerated(MockAsyncService.class, null);
+
+        CompletableFuture<String> future = service.future("dude");
+        assertFalse(future.isDone());
+
+        pending.complete("generated");
+        assertEquals("generated", future.get(1, TimeUnit.SECONDS));
+        assertEquals("generated", service.sync("dude"));
+    }
+
+}
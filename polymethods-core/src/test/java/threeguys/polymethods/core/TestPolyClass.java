@@ -19,6 +19,7 @@ import org.junit.Test;
 import threeguys.polymethods.core.methods.DelegatingPolyMethod;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,6 +31,11 @@ import static org.junit.Assert.assertTrue;
 
 public class TestPolyClass {
 
+    public interface MockInterface {
+        String echo(String arg);
+        int count();
+    }
+
     private static final Method NOOP;
 
     static {
@@ -77,4 +83,23 @@ public class TestPolyClass {
         clazz.invoke(null, notImplemented, new Object[] {});
     }
 
+    @Test
+    public void proxyDispatch() throws Throwable {
+        PolyClassBuilder<PolyClass> builder = PolyClassBuilder.builder()
+                .withTarget(MockInterface.class)
+                .withMethod("echo", new Class<?>[] { String.class }, (args) -> "echo: " + args[0]);
+
+        PolyClass clazz = builder.build();
+
+        // Methods registered after build() must not leak into an already built instance
+        builder.withMethod("count", (args) -> 42);
+
+        MockInterface proxy = (MockInterface) Proxy.newProxyInstance(MockInterface.class.getClassLoader(),
+                clazz.getInterfaces(), clazz);
+
+        assertEquals("echo: dude", proxy.echo("dude"));
+        assertTrue(clazz.implementsMethod(MockInterface.class.getMethod("echo", String.class)));
+        assertFalse(clazz.implementsMethod(MockInterface.class.getMethod("count")));
+    }
+
 }
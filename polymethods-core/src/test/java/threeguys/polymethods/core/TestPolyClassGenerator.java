@@ -0,0 +1,116 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPolyClassGenerator {
+
+    public interface MockService {
+        String stringDoubleStringReturn(String arg1, double arg2);
+        int intIntReturn(int arg);
+        void noop();
+        String legacy(String arg);
+        default String defaultMethod() {
+            return "default";
+        }
+    }
+
+    public static class MockLegacy implements MockService {
+
+        @Override
+        public String stringDoubleStringReturn(String arg1, double arg2) {
+            return "legacy";
+        }
+
+        @Override
+        public int intIntReturn(int arg) {
+            return -1;
+        }
+
+        @Override
+        public void noop() {
+            // intentionally left blank
+        }
+
+        @Override
+        public String legacy(String arg) {
+            return "legacy: " + arg;
+        }
+
+    }
+
+    @Test
+    public void happyCase() throws Throwable {
+        int [] noops = new int[1];
+        MockService service = PolyClassBuilder.builder()
+                .withTarget(MockService.class)
+                .withMethod("stringDoubleStringReturn", new Class<?>[] { String.class, double.class },
+                        (args) -> Arrays.toString(args))
+                .withMethod("intIntReturn", new Class<?>[] { int.class }, (args) -> ((Integer) args[0]) * 2)
+                .withMethod("noop", (args) -> {
+                    noops[0]++;
+                    return null;
+                })
+                .buildGenerated(MockService.class, new MockLegacy());
+
+        assertFalse(Proxy.isProxyClass(service.getClass()));
+        assertTrue(service instanceof MockService);
+
+        assertEquals("[dude, 1.5]", service.stringDoubleStringReturn("dude", 1.5));
+        assertEquals(42, service.intIntReturn(21));
+        service.noop();
+        assertEquals(1, noops[0]);
+        assertEquals("legacy: whoa", service.legacy("whoa"));
+        assertEquals("default", service.defaultMethod());
+    }
+
+    @Test(expected = MockCheckedException.class)
+    public void checkedExceptionPassesThrough() throws Throwable {
+        MockService service = PolyClassBuilder.builder()
+                .withMethod(MockService.class.getMethod("noop"), (args) -> {
+                    throw new MockCheckedException("generated");
+                })
+                .buildGenerated(MockService.class, null);
+
+        service.noop();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void missingImplementation() throws Throwable {
+        MockService service = PolyClassBuilder.builder()
+                .withTarget(MockService.class)
+                .withMethod("noop", (args) -> null)
+                .buildGenerated(MockService.class, null);
+
+        service.legacy("nope");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void classTarget() throws Throwable {
+        PolyClassBuilder.builder()
+                .withTarget(MockTargetClass.class)
+                .buildGenerated(MockTargetClass.class, null);
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.limit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdaptiveLimiter {
+
+    private final AtomicLong now = new AtomicLong();
+
+    /**
+     * Runs {@code limit} calls at once, each taking {@code latency}, and reports them dropped when over capacity.
+     */
+    private void round(AdaptiveLimiter limiter, long latency, int capacity) {
+        List<AdaptiveLimiter.Permit> permits = new ArrayList<>();
+        AdaptiveLimiter.Permit permit;
+        while ((permit = limiter.tryAcquire()) != null) {
+            permits.add(permit);
+        }
+
+        now.addAndGet(latency);
+        for (int i = 0; i < permits.size(); i++) {
+            if (i < capacity) {
+                permits.get(i).success();
+            } else {
+                permits.get(i).dropped();
+            }
+        }
+    }
+
+    @Test
+    public void enforcesLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10).withTicker(now::get);
+        AdaptiveLimiter.Permit first = limiter.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(limiter.tryAcquire());
+        assertNull(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+        assertEquals(2, limiter.getInFlight());
+
+        first.ignore();
+        assertEquals(1, limiter.getInFlight());
+        assertNotNull(limiter.tryAcquire());
+    }
+
+    @Test
+    public void growsWhileHealthy() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 50).withTicker(now::get);
+        for (int i = 0; i < 200; i++) {
+            round(limiter, 1000, Integer.MAX_VALUE);
+        }
+        assertEquals(50, limiter.getLimit());
+    }
+
+    @Test
+    public void convergesBelowCapacity() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1000).withTicker(now::get);
+
+        int max = 0;
+        for (int i = 0; i < 2000; i++) {
+            round(limiter, 1000, 40);
+            if (i >= 1000) {
+                max = Math.max(max, limiter.getLimit());
+                assertTrue("Limit collapsed: " + limiter.getLimit(), limiter.getLimit() >= 40 * 0.8 - 1);
+            }
+        }
+
+        assertTrue("Limit overshot: " + max, max <= 41);
+        assertTrue(limiter.getDropped() > 0);
+    }
+
+    @Test
+    public void backsOffOnLatency() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100).withTicker(now::get);
+        round(limiter, 1000, Integer.MAX_VALUE);
+        int before = limiter.getLimit();
+
+        // One decrease per round trip, not one per slow call
+        round(limiter, 5000, Integer.MAX_VALUE);
+        assertEquals((int) (before * 0.8), limiter.getLimit());
+    }
+
+    @Test
+    public void firstDropDecreasesWithNegativeTicker() {
+        // System.nanoTime() may well be negative
+        now.set(-1_000_000_000_000L);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 1, 100).withTicker(now::get);
+
+        AdaptiveLimiter.Permit permit = limiter.tryAcquire();
+        now.addAndGet(1000);
+        permit.dropped();
+        assertEquals(16, limiter.getLimit());
+    }
+
+    @Test
+    public void waitsForPermit() throws InterruptedException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+        AdaptiveLimiter.Permit held = limiter.tryAcquire();
+
+        assertNull(limiter.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, limiter.getRejected());
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                // ignored
+            }
+            held.success();
+        });
+        releaser.start();
+
+        assertNotNull(limiter.acquire(5, TimeUnit.SECONDS));
+        releaser.join();
+    }
+
+}
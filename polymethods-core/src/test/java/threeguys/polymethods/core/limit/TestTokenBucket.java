@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTokenBucket {
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+
+    @Test
+    public void burstThenRate() {
+        TokenBucket bucket = new TokenBucket(10, 5).withTicker(now::get);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, bucket.getRejected());
+
+        // The next token is 100ms away, and the one after that another 100ms
+        assertEquals(100, bucket.reserve(1000, TimeUnit.MILLISECONDS));
+        assertEquals(200, bucket.reserve(1000, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void refills() {
+        TokenBucket bucket = new TokenBucket(10, 2).withTicker(now::get);
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+
+        // Idle time refills up to the burst only
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void refund() {
+        TokenBucket bucket = new TokenBucket(10, 1).withTicker(now::get);
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+
+        bucket.refund();
+        assertEquals(0, bucket.reserve(0, TimeUnit.MILLISECONDS));
+        assertEquals(-1, bucket.reserve(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void acquireSleeps() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 1);
+        assertTrue(bucket.acquire(0, TimeUnit.MILLISECONDS));
+        assertFalse(bucket.acquire(0, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        assertTrue(bucket.acquire(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBatchingPolyMethod {
+
+    @Test
+    public void scattersResults() throws Exception {
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newFixedThreadPool(20);
+
+        try (BatchingPolyMethod method = new BatchingPolyMethod((calls) -> {
+            sizes.add(calls.size());
+            for (BatchingPolyMethod.Call call : calls) {
+                int value = (Integer) call.getArgs()[0];
+                if (value % 7 == 0) {
+                    call.fail(new IllegalArgumentException("multiple of seven: " + value));
+                } else {
+                    call.complete(value * 2);
+                }
+            }
+        }, 5, 50, TimeUnit.MILLISECONDS)) {
+
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int value = i;
+                results.add(pool.submit(() -> {
+                    try {
+                        return method.handle(new Object[]{ value });
+                    } catch (Throwable t) {
+                        return t;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < 20; i++) {
+                Object result = results.get(i).get(5, TimeUnit.SECONDS);
+                if (i % 7 == 0) {
+                    assertTrue(result instanceof IllegalArgumentException);
+                } else {
+                    assertEquals(i * 2, result);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int total = 0;
+        for (int size : sizes) {
+            assertTrue("Batch of " + size, size <= 5);
+            total += size;
+        }
+        assertEquals(20, total);
+        assertTrue("Expected some coalescing, got " + sizes, sizes.size() < 20);
+    }
+
+    @Test
+    public void lingerFlushesPartialBatch() throws Throwable {
+        try (BatchingPolyMethod method = new BatchingPolyMethod((calls) -> {
+            for (BatchingPolyMethod.Call call : calls) {
+                call.complete(calls.size());
+            }
+        }, 100, 10, TimeUnit.MILLISECONDS)) {
+            assertEquals(1, method.handle(new Object[]{}));
+        }
+    }
+
+    @Test
+    public void handlerFailureFailsEveryCall() throws Throwable {
+        try (BatchingPolyMethod method = new BatchingPolyMethod((calls) -> {
+            throw new IllegalStateException("bulk failed");
+        }, 10, 1, TimeUnit.MILLISECONDS)) {
+            method.handle(new Object[]{});
+            fail("Expected the bulk failure");
+        } catch (IllegalStateException e) {
+            assertEquals("bulk failed", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void incompleteCallsFail() throws Throwable {
+        try (BatchingPolyMethod method = new BatchingPolyMethod((calls) -> { }, 10, 1, TimeUnit.MILLISECONDS)) {
+            method.handle(new Object[]{});
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed() throws Throwable {
+        BatchingPolyMethod method = new BatchingPolyMethod((calls) -> { }, 10, 1, TimeUnit.MILLISECONDS);
+        method.close();
+        method.handle(new Object[]{});
+    }
+
+}
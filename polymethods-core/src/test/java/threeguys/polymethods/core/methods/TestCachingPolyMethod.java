@@ -0,0 +1,181 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestCachingPolyMethod {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final PolyMethod counting = (args) -> {
+        calls.incrementAndGet();
+        return args[0] == null ? null : "value-" + args[0];
+    };
+
+    @Test
+    public void hitsAndMisses() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod(counting, 100);
+
+        assertEquals("value-1", method.handle(new Object[]{ 1 }));
+        assertEquals("value-1", method.handle(new Object[]{ 1 }));
+        assertEquals("value-2", method.handle(new Object[]{ 2 }));
+        assertNull(method.handle(new Object[]{ null }));
+        assertNull(method.handle(new Object[]{ null }));
+
+        assertEquals(3, calls.get());
+        assertEquals(2, method.getHits());
+        assertEquals(3, method.getMisses());
+        assertEquals(3, method.size());
+    }
+
+    @Test
+    public void arrayArgumentsCompareByContent() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod((args) -> {
+            calls.incrementAndGet();
+            return ((int[]) args[0]).length;
+        }, 10);
+
+        method.handle(new Object[]{ new int[]{ 1, 2 } });
+        method.handle(new Object[]{ new int[]{ 1, 2 } });
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void customKey() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod(counting, 10)
+                .withKey((args) -> args[0]);
+
+        method.handle(new Object[]{ "a", "ignored" });
+        method.handle(new Object[]{ "a", "also ignored" });
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void boundedSize() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod(counting, 64, 4);
+        for (int i = 0; i < 1000; i++) {
+            method.handle(new Object[]{ i });
+        }
+
+        assertEquals(64, method.size());
+        assertEquals(1000 - 64, method.getEvictions());
+    }
+
+    @Test
+    public void frequentEntriesSurviveScan() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod(counting, 100, 1);
+
+        List<Object[]> hot = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            hot.add(new Object[]{ "hot-" + i });
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (Object[] args : hot) {
+                method.handle(args);
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            method.handle(new Object[]{ "scan-" + i });
+        }
+
+        calls.set(0);
+        for (Object[] args : hot) {
+            method.handle(args);
+        }
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    public void ttlExpires() throws Throwable {
+        AtomicLong now = new AtomicLong();
+        CachingPolyMethod method = new CachingPolyMethod(counting, 10)
+                .withTtl(1, TimeUnit.SECONDS)
+                .withTicker(now::get);
+
+        method.handle(new Object[]{ 1 });
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        method.handle(new Object[]{ 1 });
+        assertEquals(1, calls.get());
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        method.handle(new Object[]{ 1 });
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void refreshAhead() throws Throwable {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger version = new AtomicInteger();
+        CachingPolyMethod method = new CachingPolyMethod((args) -> version.incrementAndGet(), 10)
+                .withTtl(10, TimeUnit.SECONDS)
+                .withRefreshAhead(5, TimeUnit.SECONDS, Runnable::run)
+                .withTicker(now::get);
+
+        assertEquals(1, method.handle(new Object[]{}));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+
+        // The stale value is served while the refresh runs, after that the new one
+        assertEquals(1, method.handle(new Object[]{}));
+        assertEquals(2, method.handle(new Object[]{}));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        assertEquals(2, method.handle(new Object[]{}));
+        assertEquals(3, method.handle(new Object[]{}));
+        assertEquals(1, method.getMisses());
+    }
+
+    @Test
+    public void exceptionsAreNotCached() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod((args) -> {
+            calls.incrementAndGet();
+            throw new IllegalStateException();
+        }, 10);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                method.handle(new Object[]{ 1 });
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(2, calls.get());
+        assertEquals(0, method.size());
+    }
+
+    @Test
+    public void invalidateAll() throws Throwable {
+        CachingPolyMethod method = new CachingPolyMethod(counting, 10);
+        method.handle(new Object[]{ 1 });
+        method.invalidateAll();
+        assertEquals(0, method.size());
+        method.handle(new Object[]{ 1 });
+        assertEquals(2, calls.get());
+    }
+
+}
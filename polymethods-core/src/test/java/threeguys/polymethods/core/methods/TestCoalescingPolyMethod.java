@@ -0,0 +1,127 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCoalescingPolyMethod {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void followersShareLeaderResult() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingPolyMethod method = new CoalescingPolyMethod((args) -> {
+            calls.incrementAndGet();
+            release.await();
+            return "value-" + args[0];
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(pool.submit(() -> {
+                    try {
+                        return method.handle(new Object[]{ "key" });
+                    } catch (Throwable t) {
+                        throw new IllegalStateException(t);
+                    }
+                }));
+            }
+
+            waitFor(() -> method.getCoalesced() == THREADS - 1);
+            release.countDown();
+
+            for (Future<Object> result : results) {
+                assertEquals("value-key", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(0, method.getInFlight());
+    }
+
+    @Test
+    public void followersRethrowLeaderException() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingPolyMethod method = new CoalescingPolyMethod((args) -> {
+            release.await();
+            throw new IllegalStateException("failed");
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Throwable> leader = pool.submit(() -> capture(method));
+            waitFor(() -> method.getInFlight() == 1);
+            Future<Throwable> follower = pool.submit(() -> capture(method));
+            waitFor(() -> method.getCoalesced() == 1);
+            release.countDown();
+
+            assertTrue(leader.get(5, TimeUnit.SECONDS) instanceof IllegalStateException);
+            assertTrue(follower.get(5, TimeUnit.SECONDS) instanceof IllegalStateException);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sequentialCallsAreNotCoalesced() throws Throwable {
+        AtomicInteger calls = new AtomicInteger();
+        CoalescingPolyMethod method = new CoalescingPolyMethod((args) -> calls.incrementAndGet());
+
+        assertEquals(1, method.handle(new Object[]{ "a" }));
+        assertEquals(2, method.handle(new Object[]{ "a" }));
+        assertEquals(0, method.getCoalesced());
+    }
+
+    private static Throwable capture(CoalescingPolyMethod method) {
+        try {
+            method.handle(new Object[]{ "key" });
+            return null;
+        } catch (Throwable t) {
+            return t;
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestGuardedPolyMethod {
+
+    private static final PolyMethod LEGACY = (args) -> "legacy";
+
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicLong delay = new AtomicLong();
+
+    private final PolyMethod primary = (args) -> {
+        now.addAndGet(delay.get());
+        if (failing.get()) {
+            throw new IllegalStateException("primary failed");
+        }
+        return "primary";
+    };
+
+    private GuardedPolyMethod guarded() {
+        return new GuardedPolyMethod(primary, LEGACY, 10)
+                .withWindow(10, 5)
+                .withFailureRateThreshold(50)
+                .withOpenDuration(1, TimeUnit.SECONDS, 2)
+                .withTicker(now::get);
+    }
+
+    @Test
+    public void failuresOpenAndRecover() throws Throwable {
+        GuardedPolyMethod method = guarded();
+        for (int i = 0; i < 5; i++) {
+            assertEquals("primary", method.handle(new Object[]{}));
+        }
+
+        // Failed calls are answered by the fallback until half the window has failed
+        failing.set(true);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(GuardedPolyMethod.State.CLOSED, method.getState());
+            assertEquals("legacy", method.handle(new Object[]{}));
+        }
+        assertEquals(GuardedPolyMethod.State.OPEN, method.getState());
+
+        // While open the primary is not called at all, even once it has recovered
+        failing.set(false);
+        assertEquals("legacy", method.handle(new Object[]{}));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals("primary", method.handle(new Object[]{}));
+        assertEquals(GuardedPolyMethod.State.HALF_OPEN, method.getState());
+        assertEquals("primary", method.handle(new Object[]{}));
+        assertEquals(GuardedPolyMethod.State.CLOSED, method.getState());
+        assertEquals(0f, method.getFailureRate(), 0.0f);
+    }
+
+    @Test
+    public void failedTrialReopens() throws Throwable {
+        GuardedPolyMethod method = guarded();
+        failing.set(true);
+        for (int i = 0; i < 5; i++) {
+            method.handle(new Object[]{});
+        }
+        assertEquals(GuardedPolyMethod.State.OPEN, method.getState());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        method.handle(new Object[]{});
+        method.handle(new Object[]{});
+        assertEquals(GuardedPolyMethod.State.OPEN, method.getState());
+    }
+
+    @Test
+    public void slowCallsOpen() throws Throwable {
+        GuardedPolyMethod method = guarded().withSlowCalls(100, TimeUnit.MILLISECONDS, 60);
+
+        delay.set(TimeUnit.MILLISECONDS.toNanos(150));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("primary", method.handle(new Object[]{}));
+        }
+        assertEquals(GuardedPolyMethod.State.OPEN, method.getState());
+    }
+
+    @Test
+    public void ignoredExceptionsAreRethrown() throws Throwable {
+        GuardedPolyMethod method = guarded().withFailurePredicate((t) -> !(t instanceof IllegalStateException));
+        failing.set(true);
+        for (int i = 0; i < 10; i++) {
+            try {
+                method.handle(new Object[]{});
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(GuardedPolyMethod.State.CLOSED, method.getState());
+        assertEquals(0, method.getFallbacks());
+    }
+
+    @Test
+    public void bulkheadSheds() throws Throwable {
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        GuardedPolyMethod method = new GuardedPolyMethod((args) -> {
+            entered.countDown();
+            release.await();
+            return "primary";
+        }, LEGACY, 2);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = pool.submit(() -> handle(method));
+            Future<Object> second = pool.submit(() -> handle(method));
+            entered.await(5, TimeUnit.SECONDS);
+
+            assertEquals("legacy", method.handle(new Object[]{}));
+            assertEquals(1, method.getRejected());
+
+            release.countDown();
+            assertEquals("primary", first.get(5, TimeUnit.SECONDS));
+            assertEquals("primary", second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, method.getAvailableConcurrency());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Object handle(PolyMethod method) throws Exception {
+        try {
+            return method.handle(new Object[]{});
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+}
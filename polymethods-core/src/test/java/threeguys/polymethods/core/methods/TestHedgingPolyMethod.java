@@ -0,0 +1,205 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.After;
+import org.junit.Test;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestHedgingPolyMethod {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void fastPrimaryIsNotHedged() throws Throwable {
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> "primary", (args) -> "hedge",
+                executor, 1, TimeUnit.SECONDS);
+
+        assertEquals("primary", method.handle(new Object[]{}));
+        assertEquals(0, method.getHedges());
+    }
+
+    @Test
+    public void slowPrimaryIsHedgedAndCancelled() throws Throwable {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        PolyMethod slow = (args) -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return "primary";
+        };
+
+        HedgingPolyMethod method = new HedgingPolyMethod(slow, (args) -> "hedge", executor, 10, TimeUnit.MILLISECONDS)
+                .withBudget(100);
+
+        assertEquals("hedge", method.handle(new Object[]{}));
+        assertEquals(1, method.getHedges());
+        assertEquals(1, method.getHedgeWins());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsOnlyWhenEveryAttemptFails() throws Throwable {
+        PolyMethod slowFailure = (args) -> {
+            Thread.sleep(50);
+            throw new IllegalStateException("primary");
+        };
+
+        HedgingPolyMethod recovers = new HedgingPolyMethod(slowFailure, (args) -> {
+            Thread.sleep(100);
+            return "hedge";
+        }, executor, 10, TimeUnit.MILLISECONDS).withBudget(100);
+        assertEquals("hedge", recovers.handle(new Object[]{}));
+
+        HedgingPolyMethod fails = new HedgingPolyMethod(slowFailure, slowFailure, executor, 10, TimeUnit.MILLISECONDS)
+                .withBudget(100);
+        try {
+            fails.handle(new Object[]{});
+            fail("Expected both attempts to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("primary", e.getMessage());
+        }
+    }
+
+    @Test
+    public void saturatedPoolWaitsForPrimary() throws Throwable {
+        ExecutorService single = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+        try {
+            HedgingPolyMethod method = new HedgingPolyMethod((args) -> {
+                Thread.sleep(50);
+                return "primary";
+            }, (args) -> "hedge", single, 1, TimeUnit.MILLISECONDS).withBudget(100);
+
+            assertEquals("primary", method.handle(new Object[]{}));
+            assertEquals(0, method.getHedges());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void budgetCapsHedges() throws Throwable {
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> {
+            Thread.sleep(5);
+            return "primary";
+        }, (args) -> "hedge", executor, 0, TimeUnit.MILLISECONDS).withBudget(10);
+
+        for (int i = 0; i < 100; i++) {
+            method.handle(new Object[]{});
+        }
+        assertEquals(10, method.getHedges());
+    }
+
+    @Test
+    public void quietSpellSavesLimitedBudget() throws Throwable {
+        AtomicBoolean slow = new AtomicBoolean();
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> {
+            if (slow.get()) {
+                Thread.sleep(40);
+            }
+            return "primary";
+        }, (args) -> "hedge", executor, 20, TimeUnit.MILLISECONDS).withBudget(10);
+
+        for (int i = 0; i < 1000; i++) {
+            method.handle(new Object[]{});
+        }
+
+        slow.set(true);
+        for (int i = 0; i < 30; i++) {
+            method.handle(new Object[]{});
+        }
+
+        // The saved up hedges plus the 10% earned while slow, not 10% of every call ever made
+        long hedges = method.getHedges();
+        assertTrue("Hedges: " + hedges, hedges > 0 && hedges <= HedgingPolyMethod.MAX_SAVED_HEDGES + 3);
+    }
+
+    @Test
+    public void adaptiveDelayForgetsOldLatencies() throws Throwable {
+        AtomicBoolean slow = new AtomicBoolean(true);
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> {
+            if (slow.get()) {
+                Thread.sleep(2);
+            }
+            return "primary";
+        }, (args) -> "hedge", executor, 1, TimeUnit.SECONDS)
+                .withAdaptiveDelay(95, 1, TimeUnit.MILLISECONDS)
+                .withBudget(0);
+
+        for (int i = 0; i < 128; i++) {
+            method.handle(new Object[]{});
+        }
+        assertTrue(method.getDelay(TimeUnit.MILLISECONDS) >= 2);
+
+        slow.set(false);
+        for (int i = 0; i < 1152; i++) {
+            method.handle(new Object[]{});
+        }
+        assertEquals(1, method.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void adaptiveDelayCountsCancelledAttempts() throws Throwable {
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> {
+            Thread.sleep(1000);
+            return "primary";
+        }, (args) -> "hedge", executor, 5, TimeUnit.MILLISECONDS)
+                .withAdaptiveDelay(75, 1, TimeUnit.MILLISECONDS)
+                .withBudget(100);
+
+        // Every call is won by the hedge, the primaries are only ever cancelled
+        for (int i = 0; i < 256; i++) {
+            assertEquals("hedge", method.handle(new Object[]{}));
+        }
+        assertTrue(method.getDelay(TimeUnit.MILLISECONDS) >= 4);
+    }
+
+    @Test
+    public void adaptiveDelay() throws Throwable {
+        AtomicInteger count = new AtomicInteger();
+        HedgingPolyMethod method = new HedgingPolyMethod((args) -> count.incrementAndGet(), (args) -> "hedge",
+                executor, 1, TimeUnit.SECONDS).withAdaptiveDelay(95, 1, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 256; i++) {
+            method.handle(new Object[]{});
+        }
+
+        // Calls this fast push the delay down to the minimum
+        assertEquals(1, method.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.MockCheckedException;
+import threeguys.polymethods.core.MockTargetClass;
+import threeguys.polymethods.core.PolyClass;
+import threeguys.polymethods.core.PolyClassBuilder;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestMethodHandlePolyMethod {
+
+    @Test
+    public void happyCase() throws Throwable {
+        Method target = MockTargetClass.class.getDeclaredMethod("stringDoubleStringReturn", String.class, double.class);
+        MockTargetClass impl = new MockTargetClass();
+
+        PolyClass clazz = PolyClassBuilder.builder()
+                .withTarget(MockTargetClass.class)
+                .withMethod(target, new MethodHandlePolyMethod<>(impl, target))
+                .build();
+
+        assertEquals("dude/1.5", clazz.invoke(impl, target, new Object[]{ "dude", 1.5 }));
+    }
+
+    @Test
+    public void noArguments() throws Throwable {
+        MockTargetClass impl = new MockTargetClass();
+        MethodHandlePolyMethod<MockTargetClass> method = new MethodHandlePolyMethod<>(impl,
+                MockTargetClass.class.getDeclaredMethod("booleanReturn"));
+
+        // java.lang.reflect.Proxy passes null rather than an empty array for no-arg methods
+        assertEquals(Boolean.TRUE, method.handle(null));
+        assertEquals(Boolean.TRUE, method.handle(new Object[]{}));
+    }
+
+    @Test
+    public void voidReturn() throws Throwable {
+        List<Object> calls = new ArrayList<>();
+        MethodHandlePolyMethod<List<Object>> method = new MethodHandlePolyMethod<>(calls,
+                List.class.getMethod("clear"));
+
+        calls.add("something");
+        assertNull(method.handle(new Object[]{}));
+        assertEquals(0, calls.size());
+    }
+
+    @Test(expected = MockCheckedException.class)
+    public void checkedExceptionIsUnwrapped() throws Throwable {
+        Method target = MockTargetClass.class.getDeclaredMethod("throwsCheckedException");
+        target.setAccessible(true);
+        new MethodHandlePolyMethod<>(new MockTargetClass(), target).handle(new Object[]{});
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void runtimeExceptionIsUnwrapped() throws Throwable {
+        Method target = MockTargetClass.class.getDeclaredMethod("throwsRuntimeException");
+        target.setAccessible(true);
+        new MethodHandlePolyMethod<>(new MockTargetClass(), target).handle(new Object[]{});
+    }
+
+    @Test(expected = IllegalAccessException.class)
+    public void inaccessibleMethod() throws Throwable {
+        new MethodHandlePolyMethod<>(new MockTargetClass(), MockTargetClass.class.getDeclaredMethod("noop"));
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestShadowPolyMethod {
+
+    @Test
+    public void matchesAndMismatches() throws Throwable {
+        List<ShadowPolyMethod.Outcome> mismatches = new ArrayList<>();
+        ShadowPolyMethod method = new ShadowPolyMethod(
+                (args) -> "value-" + args[0],
+                (args) -> ((Integer) args[0]) % 2 == 0 ? "value-" + args[0] : "wrong",
+                Runnable::run, Object::equals,
+                (args, primary, shadow) -> mismatches.add(shadow));
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value-" + i, method.handle(new Object[]{ i }));
+        }
+
+        assertEquals(5, method.getMatched());
+        assertEquals(5, method.getMismatched());
+        assertEquals(0, method.getDropped());
+        assertEquals(5, mismatches.size());
+        assertEquals("wrong", mismatches.get(0).getResult());
+    }
+
+    @Test
+    public void exceptionsCompareByClass() throws Throwable {
+        PolyMethod fails = (args) -> { throw new IllegalStateException("primary"); };
+        ShadowPolyMethod same = new ShadowPolyMethod(fails,
+                (args) -> { throw new IllegalStateException("shadow"); }, Runnable::run);
+        ShadowPolyMethod different = new ShadowPolyMethod(fails, (args) -> "ok", Runnable::run);
+
+        for (ShadowPolyMethod method : new ShadowPolyMethod[]{ same, different }) {
+            try {
+                method.handle(new Object[]{});
+            } catch (IllegalStateException e) {
+                assertEquals("primary", e.getMessage());
+            }
+        }
+
+        assertEquals(1, same.getMatched());
+        assertEquals(1, different.getMismatched());
+    }
+
+    @Test
+    public void dropsWhenSaturated() throws Throwable {
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor executor = ShadowPolyMethod.boundedExecutor("shadow-test", 1, 1);
+        ShadowPolyMethod method = new ShadowPolyMethod((args) -> "primary", (args) -> {
+            release.await();
+            return "primary";
+        }, executor);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("primary", method.handle(new Object[]{}));
+            }
+
+            // One running, one queued, the rest dropped
+            assertEquals(8, method.getDropped());
+            release.countDown();
+
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(2, method.getMatched());
+    }
+
+}
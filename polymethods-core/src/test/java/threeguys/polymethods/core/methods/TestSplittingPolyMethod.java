@@ -0,0 +1,98 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSplittingPolyMethod {
+
+    private static final PolyMethod LEGACY = (args) -> "legacy";
+    private static final PolyMethod REPLACEMENT = (args) -> "replacement";
+
+    @Test
+    public void allOrNothing() throws Throwable {
+        SplittingPolyMethod method = new SplittingPolyMethod(LEGACY, REPLACEMENT, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("legacy", method.handle(new Object[]{ i }));
+        }
+
+        method.setWeight(SplittingPolyMethod.MAX_WEIGHT);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("replacement", method.handle(new Object[]{ i }));
+        }
+    }
+
+    @Test
+    public void randomSplit() throws Throwable {
+        SplittingPolyMethod method = new SplittingPolyMethod(LEGACY, REPLACEMENT, 0);
+        method.setPercentage(25);
+        assertEquals(2500, method.getWeight());
+
+        int replaced = 0;
+        for (int i = 0; i < 100000; i++) {
+            if ("replacement".equals(method.handle(new Object[]{}))) {
+                replaced++;
+            }
+        }
+        assertTrue("Replacement got " + replaced, replaced > 23500 && replaced < 26500);
+    }
+
+    @Test
+    public void stickyKey() throws Throwable {
+        SplittingPolyMethod method = new SplittingPolyMethod(LEGACY, REPLACEMENT, 3000, (args) -> args[0]);
+
+        Map<Integer, Object> first = new HashMap<>();
+        int replaced = 0;
+        for (int i = 0; i < 10000; i++) {
+            Object result = method.handle(new Object[]{ i });
+            first.put(i, result);
+            if ("replacement".equals(result)) {
+                replaced++;
+            }
+        }
+        assertTrue("Replacement got " + replaced, replaced > 2500 && replaced < 3500);
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(first.get(i), method.handle(new Object[]{ i }));
+        }
+
+        // Raising the weight only moves keys onto the replacement
+        method.setWeight(6000);
+        for (int i = 0; i < 10000; i++) {
+            if ("replacement".equals(first.get(i))) {
+                assertEquals("replacement", method.handle(new Object[]{ i }));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weightOutOfRange() {
+        new SplittingPolyMethod(LEGACY, REPLACEMENT, SplittingPolyMethod.MAX_WEIGHT + 1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullLegacy() {
+        new SplittingPolyMethod(null, REPLACEMENT, 0);
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.methods;
+
+import org.junit.Test;
+import threeguys.polymethods.core.AsyncPolyMethod;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTimeoutPolyMethod {
+
+    @Test
+    public void completesInTime() throws Throwable {
+        PolyMethod method = TimeoutPolyMethod.of((args) -> args[0], 1, TimeUnit.SECONDS);
+        assertEquals("fast", method.handle(new Object[]{ "fast" }));
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void interruptsSlowCall() throws Throwable {
+        PolyMethod method = TimeoutPolyMethod.of((args) -> {
+            Thread.sleep(10000);
+            return "slow";
+        }, 20, TimeUnit.MILLISECONDS);
+
+        try {
+            method.handle(new Object[]{});
+            fail("Expected the call to time out");
+        } catch (TimeoutException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+
+        // The interrupt is consumed by the timeout and never leaks to the caller
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void failuresPassThrough() throws Throwable {
+        PolyMethod method = TimeoutPolyMethod.of((args) -> {
+            throw new IllegalArgumentException("bad");
+        }, 1, TimeUnit.SECONDS);
+
+        try {
+            method.handle(new Object[]{});
+            fail("Expected the failure");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad", e.getMessage());
+        }
+    }
+
+    @Test
+    public void asyncCompletesExceptionally() throws Throwable {
+        CompletableFuture<Object> never = new CompletableFuture<>();
+        PolyMethod method = TimeoutPolyMethod.of((AsyncPolyMethod) (args) -> never, 20, TimeUnit.MILLISECONDS);
+        assertTrue(method instanceof AsyncPolyMethod);
+
+        CompletableFuture<?> future = ((AsyncPolyMethod) method).handleAsync(new Object[]{});
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected the future to time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(never.isCancelled());
+    }
+
+    @Test
+    public void asyncInTime() throws Throwable {
+        PolyMethod method = TimeoutPolyMethod.of((AsyncPolyMethod) (args) -> CompletableFuture.completedFuture("done"),
+                1, TimeUnit.SECONDS);
+        assertEquals("done", method.handle(new Object[]{}));
+    }
+
+}
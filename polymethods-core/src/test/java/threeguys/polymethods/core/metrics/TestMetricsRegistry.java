@@ -0,0 +1,113 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.metrics;
+
+import org.junit.Test;
+import threeguys.polymethods.core.AsyncPolyMethod;
+import threeguys.polymethods.core.PolyClass;
+import threeguys.polymethods.core.PolyClassBuilder;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestMetricsRegistry {
+
+    public interface Service {
+        String echo(String value);
+        CompletableFuture<String> later(String value);
+    }
+
+    @Test
+    public void instrumentsEveryMethod() throws Throwable {
+        MetricsRegistry registry = new MetricsRegistry();
+        Method echo = Service.class.getMethod("echo", String.class);
+        Method later = Service.class.getMethod("later", String.class);
+        CompletableFuture<String> pending = new CompletableFuture<>();
+
+        PolyClass clazz = PolyClassBuilder.builder()
+                .withTarget(Service.class)
+                .withMethod(echo, (args) -> {
+                    if (args[0] == null) {
+                        throw new IllegalArgumentException();
+                    }
+                    return args[0];
+                })
+                .withMethod(later, (AsyncPolyMethod) (args) -> pending)
+                .withMetrics(registry)
+                .build();
+
+        Service service = (Service) Proxy.newProxyInstance(Service.class.getClassLoader(),
+                new Class<?>[]{ Service.class }, clazz);
+
+        assertEquals("a", service.echo("a"));
+        try {
+            service.echo(null);
+            fail("Expected the method to throw");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        MethodMetrics echoMetrics = registry.get(getClass().getName() + "$Service.echo(String)");
+        assertEquals(2, echoMetrics.getCalls());
+        assertEquals(1, echoMetrics.getErrors());
+        assertEquals(2, echoMetrics.getLatency().getCount());
+
+        // Async methods still hand back the future, and are timed until it completes
+        assertSame(pending, service.later("b"));
+        MethodMetrics laterMetrics = registry.metrics(later);
+        assertEquals(0, laterMetrics.getCalls());
+        pending.complete("b");
+        assertEquals(1, laterMetrics.getCalls());
+        assertEquals(0, laterMetrics.getErrors());
+    }
+
+    @Test
+    public void disabledByDefault() throws Throwable {
+        Method echo = Service.class.getMethod("echo", String.class);
+        MetricsRegistry registry = new MetricsRegistry();
+
+        PolyClassBuilder.builder()
+                .withTarget(Service.class)
+                .withMethod(echo, (args) -> args[0])
+                .build()
+                .invoke(null, echo, new Object[]{ "a" });
+
+        assertNull(registry.get(MetricsRegistry.nameOf(echo)));
+    }
+
+    @Test
+    public void jmx() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.metrics("before").record(1000, false);
+
+        new JmxMetricsExporter(server).export(registry);
+        registry.metrics("after").record(2000, true);
+
+        assertEquals(1L, server.getAttribute(JmxMetricsExporter.objectName("before"), "Calls"));
+        assertEquals(1L, server.getAttribute(JmxMetricsExporter.objectName("after"), "Errors"));
+        assertEquals(2000L, server.getAttribute(JmxMetricsExporter.objectName("after"), "MaxNanos"));
+    }
+
+}
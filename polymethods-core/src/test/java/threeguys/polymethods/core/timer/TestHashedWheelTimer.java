@@ -0,0 +1,94 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.core.timer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestHashedWheelTimer {
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void close() throws InterruptedException {
+        timer.close();
+    }
+
+    @Test
+    public void expires() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        Timeout timeout = timer.newTimeout(fired::countDown, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(0, timer.getPending());
+    }
+
+    @Test
+    public void multipleRounds() throws InterruptedException {
+        // The wheel only covers 8ms, so this one has to wait several turns
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.newTimeout(fired::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void cancelled() throws InterruptedException {
+        AtomicInteger fired = new AtomicInteger();
+        Timeout timeout = timer.newTimeout(fired::incrementAndGet, 10, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, timer.getPending());
+
+        CountDownLatch later = new CountDownLatch(1);
+        timer.newTimeout(later::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    public void manyTimeouts() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(10000);
+        for (int i = 0; i < 20000; i++) {
+            Timeout timeout = timer.newTimeout(fired::countDown, i % 20, TimeUnit.MILLISECONDS);
+            if (i % 2 == 0) {
+                timeout.cancel();
+            }
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed() throws InterruptedException {
+        timer.close();
+        timer.newTimeout(() -> { }, 1, TimeUnit.MILLISECONDS);
+    }
+
+}
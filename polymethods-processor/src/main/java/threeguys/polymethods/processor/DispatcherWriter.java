@@ -0,0 +1,262 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.processor;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the source of a dispatcher for one interface. For an interface {@code Service} with a method
+ * {@code String echo(String value)} the generated {@code ServicePolyDispatcher}:
+ * <ul>
+ *     <li>declares a functional interface {@code EchoMethod} with the same signature as {@code echo},</li>
+ *     <li>holds a final {@code EchoMethod} field and implements {@code echo} by calling it directly,</li>
+ *     <li>has a {@code Builder} with {@code withEcho(EchoMethod)} for typed implementations,
+ *     {@code withEchoHandler(PolyMethod)} for existing {@code PolyMethod}s, and {@code withFallback(Service)}
+ *     for every method that is not set.</li>
+ * </ul>
+ * Methods that are neither set nor have a fallback throw {@link UnsupportedOperationException}.
+ */
+class DispatcherWriter {
+
+    private static final String POLY_METHOD = "threeguys.polymethods.core.PolyMethod";
+
+    // Members of the generated class and its builder that a method's field and setter must not collide with,
+    // capitalized like the names derived from each id
+    private static final Set<String> RESERVED = new HashSet<>(
+            Arrays.asList("Fallback", "Builder", "Invoke", "SneakyThrow"));
+
+    private final TypeElement type;
+    private final String packageName;
+    private final String simpleName;
+    private final String typeName;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private static final class Entry {
+        final ExecutableElement method;
+        final String id;
+        final String iface;
+
+        Entry(ExecutableElement method, String id, String iface) {
+            this.method = method;
+            this.id = id;
+            this.iface = iface;
+        }
+    }
+
+    DispatcherWriter(Elements elements, TypeElement type, List<ExecutableElement> methods) {
+        this.type = type;
+        this.packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        this.typeName = type.getQualifiedName().toString();
+
+        // Nested interfaces are flattened into the package, Outer.Inner becomes Outer_InnerPolyDispatcher
+        String name = typeName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1);
+        this.simpleName = name.replace('.', '_') + PolymorphicProcessor.SUFFIX;
+
+        // Checked capitalized, ids differing only in their first letter would get the same interface and setter
+        Set<String> used = new HashSet<>(RESERVED);
+        for (ExecutableElement method : methods) {
+            String base = method.getSimpleName().toString();
+            String id = base;
+            for (int i = 1; !used.add(capitalize(id)); i++) {
+                id = base + i;
+            }
+            entries.add(new Entry(method, id, capitalize(id) + "Method"));
+        }
+    }
+
+    String getQualifiedName() {
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+
+    String write() {
+        StringBuilder out = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            out.append("package ").append(packageName).append(";\n\n");
+        }
+
+        String visibility = type.getModifiers().contains(Modifier.PUBLIC) ? "public " : "";
+        out.append("/**\n * Dispatcher for {@link ").append(typeName).append("}, generated by ")
+                .append(PolymorphicProcessor.class.getName()).append(". Do not edit.\n */\n")
+                .append(visibility).append("final class ").append(simpleName)
+                .append(" implements ").append(typeName).append(" {\n");
+
+        for (Entry entry : entries) {
+            out.append("\n    @FunctionalInterface\n    public interface ").append(entry.iface).append(" {\n        ")
+                    .append(signature(entry.method, entry.method.getSimpleName().toString())).append(";\n    }\n");
+        }
+
+        out.append('\n');
+        for (Entry entry : entries) {
+            out.append("    private final ").append(entry.iface).append(' ').append(entry.id).append(";\n");
+        }
+
+        out.append("\n    private ").append(simpleName).append("(Builder builder) {\n");
+        for (Entry entry : entries) {
+            out.append("        this.").append(entry.id).append(" = builder.").append(entry.id).append(";\n");
+        }
+        out.append("    }\n");
+
+        for (Entry entry : entries) {
+            String name = entry.method.getSimpleName().toString();
+            out.append("\n    @Override\n    public ").append(signature(entry.method, name)).append(" {\n        ")
+                    .append(isVoid(entry.method) ? "" : "return ")
+                    .append("this.").append(entry.id).append('.').append(name)
+                    .append('(').append(parameterNames(entry.method)).append(");\n    }\n");
+        }
+
+        out.append("\n    public static Builder builder() {\n        return new Builder();\n    }\n");
+        writeBuilder(out);
+        writeInvoke(out);
+
+        return out.append("}\n").toString();
+    }
+
+    private void writeBuilder(StringBuilder out) {
+        out.append("\n    public static final class Builder {\n\n");
+        out.append("        private ").append(typeName).append(" fallback;\n");
+        for (Entry entry : entries) {
+            out.append("        private ").append(entry.iface).append(' ').append(entry.id).append(";\n");
+        }
+
+        out.append("\n        private Builder() {\n        }\n");
+
+        out.append("\n        /**\n         * Receives every call to a method that has no implementation set.\n         */\n")
+                .append("        public Builder withFallback(").append(typeName).append(" fallback) {\n")
+                .append("            this.fallback = fallback;\n            return this;\n        }\n");
+
+        for (Entry entry : entries) {
+            String setter = "with" + capitalize(entry.id);
+            out.append("\n        public Builder ").append(setter).append('(').append(entry.iface).append(" impl) {\n")
+                    .append("            this.").append(entry.id).append(" = impl;\n            return this;\n        }\n");
+
+            out.append("\n        public Builder ").append(setter).append("Handler(").append(POLY_METHOD)
+                    .append(" handler) {\n            if (handler == null) {\n")
+                    .append("                throw new NullPointerException();\n            }\n")
+                    .append("            this.").append(entry.id).append(" = (").append(lambdaParameters(entry.method))
+                    .append(") -> ").append(fromHandler(entry.method)).append(";\n")
+                    .append("            return this;\n        }\n");
+        }
+
+        out.append("\n        public ").append(simpleName).append(" build() {\n")
+                .append("            ").append(typeName).append(" fallback = this.fallback;\n")
+                .append("            Builder builder = new Builder();\n");
+        for (Entry entry : entries) {
+            String name = entry.method.getSimpleName().toString();
+            out.append("            builder.").append(entry.id).append(" = this.").append(entry.id).append(" != null ? this.")
+                    .append(entry.id).append("\n                    : fallback != null ? fallback::").append(name)
+                    .append("\n                    : (").append(lambdaParameters(entry.method))
+                    .append(") -> { throw new UnsupportedOperationException(\"Method implementation: ")
+                    .append(typeName).append('.').append(name).append(" was not found!\"); };\n");
+        }
+        out.append("            return new ").append(simpleName).append("(builder);\n        }\n\n    }\n");
+    }
+
+    private void writeInvoke(StringBuilder out) {
+        out.append("\n    private static Object invoke(").append(POLY_METHOD).append(" handler, Object[] args) {\n")
+                .append("        try {\n            return handler.handle(args);\n")
+                .append("        } catch (Throwable t) {\n")
+                .append("            throw ").append(simpleName).append(".<RuntimeException>sneakyThrow(t);\n")
+                .append("        }\n    }\n");
+
+        out.append("\n    @SuppressWarnings(\"unchecked\")\n")
+                .append("    private static <E extends Throwable> E sneakyThrow(Throwable t) throws E {\n")
+                .append("        throw (E) t;\n    }\n");
+    }
+
+    /**
+     * Adapts a PolyMethod to the typed signature; checked exceptions thrown by the handler pass through unchanged.
+     */
+    private String fromHandler(ExecutableElement method) {
+        String call = "invoke(handler, new Object[]{ " + lambdaParameters(method) + " })";
+        if (isVoid(method)) {
+            return "{ " + call + "; }";
+        }
+        return "(" + method.getReturnType() + ") " + call;
+    }
+
+    private static String signature(ExecutableElement method, String name) {
+        StringBuilder out = new StringBuilder();
+        out.append(method.getReturnType()).append(' ').append(name).append('(');
+
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+
+            TypeMirror paramType = params.get(i).asType();
+            if (method.isVarArgs() && i == params.size() - 1 && paramType.getKind() == TypeKind.ARRAY) {
+                String array = paramType.toString();
+                out.append(array, 0, array.length() - 2).append("...");
+            } else {
+                out.append(paramType);
+            }
+            out.append(' ').append(params.get(i).getSimpleName());
+        }
+        out.append(')');
+
+        List<? extends TypeMirror> thrown = method.getThrownTypes();
+        for (int i = 0; i < thrown.size(); i++) {
+            out.append(i == 0 ? " throws " : ", ").append(thrown.get(i));
+        }
+        return out.toString();
+    }
+
+    private static String parameterNames(ExecutableElement method) {
+        StringBuilder out = new StringBuilder();
+        for (VariableElement param : method.getParameters()) {
+            if (out.length() > 0) {
+                out.append(", ");
+            }
+            out.append(param.getSimpleName());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Lambda parameters, named so they cannot clash with the locals of the generated builder.
+     */
+    private static String lambdaParameters(ExecutableElement method) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < method.getParameters().size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append("arg").append(i);
+        }
+        return out.toString();
+    }
+
+    private static boolean isVoid(ExecutableElement method) {
+        return method.getReturnType().getKind() == TypeKind.VOID;
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+}
@@ -0,0 +1,114 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a {@code <Name>PolyDispatcher} for every interface annotated with
+ * {@link threeguys.polymethods.core.Polymorphic}, see {@link DispatcherWriter} for what it contains.
+ */
+@SupportedAnnotationTypes(PolymorphicProcessor.POLYMORPHIC)
+public class PolymorphicProcessor extends AbstractProcessor {
+
+    static final String POLYMORPHIC = "threeguys.polymethods.core.Polymorphic";
+    static final String SUFFIX = "PolyDispatcher";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.INTERFACE) {
+                    error(element, "@Polymorphic can only be applied to interfaces");
+                    continue;
+                }
+
+                TypeElement type = (TypeElement) element;
+                if (!type.getTypeParameters().isEmpty()) {
+                    error(type, "@Polymorphic does not support generic interfaces");
+                    continue;
+                }
+
+                List<ExecutableElement> methods = abstractMethods(type);
+                if (methods != null) {
+                    generate(type, methods);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Abstract methods of the interface including inherited ones, or null when one of them cannot be dispatched.
+     */
+    private List<ExecutableElement> abstractMethods(TypeElement type) {
+        List<ExecutableElement> methods = new ArrayList<>();
+        boolean valid = true;
+
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)
+                    || method.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+
+            if (!method.getTypeParameters().isEmpty()) {
+                error(method, "@Polymorphic does not support generic methods");
+                valid = false;
+            }
+            methods.add(method);
+        }
+
+        return valid ? methods : null;
+    }
+
+    private void generate(TypeElement type, List<ExecutableElement> methods) {
+        DispatcherWriter dispatcher = new DispatcherWriter(processingEnv.getElementUtils(), type, methods);
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(dispatcher.getQualifiedName(), type);
+            try (Writer out = file.openWriter()) {
+                out.write(dispatcher.write());
+            }
+        } catch (IOException e) {
+            error(type, "Unable to write " + dispatcher.getQualifiedName() + ": " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.processor;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPolymorphicProcessor {
+
+    public static class LegacyService implements ExampleService {
+
+        @Override
+        public String echo(String value) {
+            return "legacy " + value;
+        }
+
+        @Override
+        public int add(int a, int b) {
+            return -1;
+        }
+
+        @Override
+        public int add(int a, int b, int c) {
+            return -1;
+        }
+
+        @Override
+        public void write(List<String> lines) {
+        }
+
+        @Override
+        public String join(String... parts) {
+            return "legacy";
+        }
+
+        @Override
+        public long count() {
+            return 42;
+        }
+
+    }
+
+    @Test
+    public void typedAndHandlerMethods() throws IOException {
+        List<String> written = new ArrayList<>();
+        ExampleService service = ExampleServicePolyDispatcher.builder()
+                .withEcho((value) -> "new " + value)
+                .withAdd((a, b) -> a + b)
+                .withAdd1Handler((args) -> (Integer) args[0] + (Integer) args[1] + (Integer) args[2])
+                .withWrite(written::addAll)
+                .withJoin((parts) -> String.join("-", parts))
+                .withFallback(new LegacyService())
+                .build();
+
+        assertEquals("new a", service.echo("a"));
+        assertEquals(3, service.add(1, 2));
+        assertEquals(6, service.add(1, 2, 3));
+        assertEquals("a-b-c", service.join("a", "b", "c"));
+        assertEquals("hello new world", service.greet("world"));
+        assertEquals(42, service.count());
+
+        service.write(Arrays.asList("x", "y"));
+        assertEquals(Arrays.asList("x", "y"), written);
+    }
+
+    @Test
+    public void checkedExceptionsPassThrough() {
+        ExampleService service = ExampleServicePolyDispatcher.builder()
+                .withWriteHandler((args) -> {
+                    throw new IOException("disk full");
+                })
+                .build();
+
+        try {
+            service.write(Collections.emptyList());
+            fail("Expected the handler's exception");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void missingWithoutFallback() {
+        ExampleServicePolyDispatcher.builder().build().count();
+    }
+
+    @Test
+    public void rejectsGenericMethods() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("example.Generic",
+                "package example;\n"
+                        + "@threeguys.polymethods.core.Polymorphic\n"
+                        + "public interface Generic {\n"
+                        + "    <T> T identity(T value);\n"
+                        + "}\n");
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage(null).contains("generic methods"));
+    }
+
+    @Test
+    public void rejectsClasses() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("example.NotAnInterface",
+                "package example;\n"
+                        + "@threeguys.polymethods.core.Polymorphic\n"
+                        + "public class NotAnInterface {\n"
+                        + "}\n");
+
+        assertFalse(errors.isEmpty());
+        assertTrue(errors.get(0).getMessage(null).contains("only be applied to interfaces"));
+    }
+
+    @Test
+    public void nestedInterface() throws IOException {
+        assertTrue(compile("example.Outer",
+                "package example;\n"
+                        + "public class Outer {\n"
+                        + "    @threeguys.polymethods.core.Polymorphic\n"
+                        + "    interface Inner {\n"
+                        + "        void run();\n"
+                        + "    }\n"
+                        + "    Inner inner = Outer_InnerPolyDispatcher.builder().withRun(() -> { }).build();\n"
+                        + "}\n").isEmpty());
+    }
+
+    @Test
+    public void methodsNamedLikeGeneratedMembers() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("example.Reserved",
+                "package example;\n"
+                        + "@threeguys.polymethods.core.Polymorphic\n"
+                        + "public interface Reserved {\n"
+                        + "    String fallback(String value);\n"
+                        + "    void invoke();\n"
+                        + "    Reserved INSTANCE = ReservedPolyDispatcher.builder()\n"
+                        + "            .withFallback1((value) -> value)\n"
+                        + "            .withInvoke1(() -> { })\n"
+                        + "            .withFallback((Reserved) null)\n"
+                        + "            .build();\n"
+                        + "}\n");
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void methodsDifferingOnlyInCase() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = compile("example.Cased",
+                "package example;\n"
+                        + "@threeguys.polymethods.core.Polymorphic\n"
+                        + "public interface Cased {\n"
+                        + "    String foo();\n"
+                        + "    String Foo();\n"
+                        + "    Cased INSTANCE = CasedPolyDispatcher.builder()\n"
+                        + "            .withFoo(() -> \"lower\")\n"
+                        + "            .withFoo1(() -> \"upper\")\n"
+                        + "            .build();\n"
+                        + "}\n");
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static List<Diagnostic<? extends JavaFileObject>> compile(String name, String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Path output = Files.createTempDirectory("polymorphic");
+
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                Arrays.asList("-d", output.toString(), "-classpath", System.getProperty("java.class.path")),
+                null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new PolymorphicProcessor()));
+        task.call();
+
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+
+}
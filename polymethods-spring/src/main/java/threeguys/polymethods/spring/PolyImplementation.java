@@ -0,0 +1,48 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.spring;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@link threeguys.polymethods.core.PolyMethod} bean as the replacement for one interface method, either on
+ * the bean class or on its {@code @Bean} factory method. Picked up by {@link PolyMethodAdvisor}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.TYPE, ElementType.METHOD })
+public @interface PolyImplementation {
+
+    /**
+     * Interface declaring the replaced method.
+     */
+    Class<?> target();
+
+    /**
+     * Name of the replaced method.
+     */
+    String method();
+
+    /**
+     * Parameter types of the replaced method, only needed when the name is overloaded.
+     */
+    Class<?>[] parameterTypes() default {};
+
+}
@@ -23,17 +23,49 @@ import threeguys.polymethods.core.PolyClass;
 import threeguys.polymethods.core.PolyClassBuilder;
 import threeguys.polymethods.core.PolyMethod;
 
+import java.lang.reflect.Method;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PolyInterceptor extends PolyClass implements MethodInterceptor, IntroductionInterceptor, IntroductionInfo {
 
-    public PolyInterceptor(Class<?> targetClass, Map<String, PolyMethod> methods) {
+    private static final Method NOT_REPLACED;
+
+    static {
+        try {
+            NOT_REPLACED = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Invoked method to the replaced interface method, proxies hand out the same Method instances on every call
+    private final Map<Method, Method> resolved = new ConcurrentHashMap<>();
+
+    public PolyInterceptor(Class<?> targetClass, Map<Method, PolyMethod> methods) {
         super(targetClass, methods);
     }
 
+    /**
+     * Calls the replacement for the invoked method, or proceeds to the target when the method is not replaced.
+     */
     @Override
     public Object invoke(MethodInvocation invocation) throws Throwable {
-        return this.invoke(null, invocation.getMethod(), invocation.getArguments());
+        Method method = resolved.computeIfAbsent(invocation.getMethod(), this::resolve);
+        if (method == NOT_REPLACED) {
+            return invocation.proceed();
+        }
+        return this.invoke(invocation.getThis(), method, invocation.getArguments());
+    }
+
+    private Method resolve(Method invoked) {
+        for (Class<?> target : getInterfaces()) {
+            Method method = PolyMethods.resolve(target, invoked);
+            if (method != null && implementsMethod(method)) {
+                return method;
+            }
+        }
+        return NOT_REPLACED;
     }
 
     public static PolyClassBuilder<PolyInterceptor> builder() throws NoSuchMethodException {
@@ -0,0 +1,241 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.spring;
+
+import org.aopalliance.aop.Advice;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ClassFilter;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.support.AbstractPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import threeguys.polymethods.core.PolyClassBuilder;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replaces interface methods with the {@link PolyMethod} beans annotated with {@link PolyImplementation}, on every
+ * bean implementing one of those interfaces. Register it as a bean alongside an auto proxy creator, such as the one
+ * from {@code @EnableAspectJAutoProxy}. Methods without a replacement proceed to the original bean.
+ * <p>
+ * Which methods are replaced is read from bean metadata the first time a bean is matched, without creating the
+ * {@link PolyMethod} beans, and match results are cached per method so proxying many beans of the same types stays
+ * cheap. The dispatch table itself is built once all singletons exist, or on the first call if that comes earlier.
+ */
+public class PolyMethodAdvisor extends AbstractPointcutAdvisor implements BeanFactoryAware, SmartInitializingSingleton {
+
+    private static final Method NOT_REPLACED;
+
+    static {
+        try {
+            NOT_REPLACED = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private transient ListableBeanFactory beanFactory;
+
+    // Replaced interface method to the name of its PolyMethod bean
+    private transient volatile Map<Method, String> replacements;
+    private transient volatile Map<Class<?>, PolyInterceptor> interceptors;
+    private final transient Map<Method, Method> matches = new ConcurrentHashMap<>();
+
+    private final Pointcut pointcut = new StaticMethodMatcherPointcut() {
+
+        @Override
+        public ClassFilter getClassFilter() {
+            return PolyMethodAdvisor.this::matchesClass;
+        }
+
+        @Override
+        public boolean matches(Method method, Class<?> targetClass) {
+            return replaced(method) != NOT_REPLACED;
+        }
+    };
+
+    private final MethodInterceptor advice = this::invoke;
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        if (!(beanFactory instanceof ListableBeanFactory)) {
+            throw new IllegalArgumentException("PolyMethodAdvisor requires a ListableBeanFactory");
+        }
+        this.beanFactory = (ListableBeanFactory) beanFactory;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        dispatchTable();
+    }
+
+    @Override
+    public Pointcut getPointcut() {
+        return pointcut;
+    }
+
+    @Override
+    public Advice getAdvice() {
+        return advice;
+    }
+
+    /**
+     * Replaced interface methods and the names of the beans replacing them.
+     */
+    public Map<Method, String> getReplacements() {
+        return Collections.unmodifiableMap(replacements());
+    }
+
+    private Object invoke(MethodInvocation invocation) throws Throwable {
+        Method method = replaced(invocation.getMethod());
+        if (method == NOT_REPLACED) {
+            return invocation.proceed();
+        }
+
+        return dispatchTable().get(method.getDeclaringClass())
+                .invoke(invocation.getThis(), method, invocation.getArguments());
+    }
+
+    private boolean matchesClass(Class<?> clazz) {
+        // Never proxy the replacements themselves
+        if (PolyMethod.class.isAssignableFrom(clazz)) {
+            return false;
+        }
+
+        for (Method method : replacements().keySet()) {
+            if (method.getDeclaringClass().isAssignableFrom(clazz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Method replaced(Method invoked) {
+        return matches.computeIfAbsent(invoked, (m) -> {
+            Map<Method, String> table = replacements();
+            for (Class<?> target : targets(table)) {
+                Method method = PolyMethods.resolve(target, m);
+                if (method != null && table.containsKey(method)) {
+                    return method;
+                }
+            }
+            return NOT_REPLACED;
+        });
+    }
+
+    private static Set<Class<?>> targets(Map<Method, String> table) {
+        Set<Class<?>> targets = new HashSet<>();
+        for (Method method : table.keySet()) {
+            targets.add(method.getDeclaringClass());
+        }
+        return targets;
+    }
+
+    private Map<Method, String> replacements() {
+        Map<Method, String> table = replacements;
+        if (table != null) {
+            return table;
+        }
+
+        synchronized (this) {
+            if (replacements == null) {
+                replacements = Collections.unmodifiableMap(discover());
+            }
+            return replacements;
+        }
+    }
+
+    private Map<Method, String> discover() {
+        if (beanFactory == null) {
+            throw new IllegalStateException("PolyMethodAdvisor must be registered as a bean");
+        }
+
+        Map<Method, String> table = new HashMap<>();
+        for (String name : beanFactory.getBeanNamesForType(PolyMethod.class, true, false)) {
+            PolyImplementation annotation = beanFactory.findAnnotationOnBean(name, PolyImplementation.class);
+            if (annotation == null) {
+                continue;
+            }
+
+            Method method;
+            try {
+                method = PolyMethods.find(annotation);
+            } catch (NoSuchMethodException | IllegalStateException e) {
+                throw new BeanInitializationException("Bean " + name + " replaces an unknown method", e);
+            }
+
+            String existing = table.put(method, name);
+            if (existing != null) {
+                throw new BeanInitializationException("Method " + method + " is replaced by both "
+                        + existing + " and " + name);
+            }
+        }
+        return table;
+    }
+
+    private Map<Class<?>, PolyInterceptor> dispatchTable() {
+        Map<Class<?>, PolyInterceptor> table = interceptors;
+        if (table != null) {
+            return table;
+        }
+
+        synchronized (this) {
+            if (interceptors == null) {
+                interceptors = Collections.unmodifiableMap(build());
+            }
+            return interceptors;
+        }
+    }
+
+    private Map<Class<?>, PolyInterceptor> build() {
+        Map<Class<?>, PolyClassBuilder<PolyInterceptor>> builders = new HashMap<>();
+        Map<Class<?>, PolyInterceptor> table = new HashMap<>();
+
+        try {
+            for (Map.Entry<Method, String> entry : replacements().entrySet()) {
+                Class<?> target = entry.getKey().getDeclaringClass();
+                PolyClassBuilder<PolyInterceptor> builder = builders.get(target);
+                if (builder == null) {
+                    builder = PolyInterceptor.builder().withTarget(target);
+                    builders.put(target, builder);
+                }
+                builder.withMethod(entry.getKey(), beanFactory.getBean(entry.getValue(), PolyMethod.class));
+            }
+
+            for (Map.Entry<Class<?>, PolyClassBuilder<PolyInterceptor>> entry : builders.entrySet()) {
+                table.put(entry.getKey(), (PolyInterceptor) entry.getValue().build());
+            }
+
+        } catch (ReflectiveOperationException e) {
+            throw new BeanInitializationException("Unable to build the poly method dispatch table", e);
+        }
+        return table;
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.spring;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+final class PolyMethods {
+
+    private PolyMethods() {
+    }
+
+    /**
+     * Finds the method of the interface that an invoked method implements. Interface based proxies hand out the
+     * interface method itself, class based proxies the implementation's.
+     */
+    static Method resolve(Class<?> target, Method invoked) {
+        if (invoked.getDeclaringClass() == target) {
+            return invoked;
+        }
+
+        if (Modifier.isStatic(invoked.getModifiers()) || !target.isAssignableFrom(invoked.getDeclaringClass())) {
+            return null;
+        }
+
+        try {
+            return target.getMethod(invoked.getName(), invoked.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    static Method find(PolyImplementation annotation) throws NoSuchMethodException {
+        Class<?> target = annotation.target();
+        if (annotation.parameterTypes().length > 0) {
+            return target.getMethod(annotation.method(), annotation.parameterTypes());
+        }
+
+        Method found = null;
+        for (Method method : target.getMethods()) {
+            if (method.getName().equals(annotation.method())) {
+                if (found != null) {
+                    throw new IllegalStateException("Method " + annotation.method() + " of " + target
+                            + " is overloaded, parameter types are required");
+                }
+                found = method;
+            }
+        }
+
+        if (found == null) {
+            throw new NoSuchMethodException(target.getName() + "." + annotation.method());
+        }
+        return found;
+    }
+
+}
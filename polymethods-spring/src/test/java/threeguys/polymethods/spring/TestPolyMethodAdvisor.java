@@ -0,0 +1,131 @@
+/**
+ *    Copyright 2020 Ray Cole
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package threeguys.polymethods.spring;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import threeguys.polymethods.core.PolyMethod;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+public class TestPolyMethodAdvisor {
+
+    public static class LegacyService implements ExampleService {
+
+        @Override
+        public String localMethod(String arg) {
+            return "local: " + arg;
+        }
+
+        @Override
+        public String overrideMethod(String arg) {
+            return "legacy: " + arg;
+        }
+
+    }
+
+    @PolyImplementation(target = ExampleService.class, method = "overrideMethod")
+    public static class Replacement implements PolyMethod {
+
+        @Override
+        public Object handle(Object[] args) {
+            return "replaced: " + Arrays.toString(args);
+        }
+
+    }
+
+    @Configuration
+    @EnableAspectJAutoProxy
+    public static class TestConfig {
+
+        @Bean
+        public PolyMethodAdvisor polyMethodAdvisor() {
+            return new PolyMethodAdvisor();
+        }
+
+        @Bean
+        public LegacyService legacyService() {
+            return new LegacyService();
+        }
+
+        @Bean
+        public Replacement replacement() {
+            return new Replacement();
+        }
+
+        @Bean
+        public PolyMethod unrelated() {
+            return (args) -> "not a replacement";
+        }
+
+    }
+
+    @Autowired
+    ExampleService service;
+
+    @Autowired
+    PolyMethodAdvisor advisor;
+
+    @Autowired
+    PolyMethod replacement;
+
+    @Test
+    public void replacesAnnotatedMethods() throws NoSuchMethodException {
+        assertTrue(AopUtils.isAopProxy(service));
+        assertEquals("replaced: [whoa]", service.overrideMethod("whoa"));
+        assertEquals("local: dude", service.localMethod("dude"));
+
+        assertEquals(1, advisor.getReplacements().size());
+        assertEquals("replacement", advisor.getReplacements()
+                .get(ExampleService.class.getMethod("overrideMethod", String.class)));
+    }
+
+    @Test
+    public void replacementsAreNotProxied() {
+        assertFalse(AopUtils.isAopProxy(replacement));
+    }
+
+    @Test
+    public void interceptorProceedsForUnreplacedMethods() throws Throwable {
+        PolyInterceptor interceptor = (PolyInterceptor) PolyInterceptor.builder()
+                .withTarget(ExampleService.class)
+                .withMethod("overrideMethod", new Class<?>[]{ String.class }, (args) -> "intercepted")
+                .build();
+
+        for (boolean proxyTargetClass : new boolean[]{ false, true }) {
+            ProxyFactory factory = new ProxyFactory(new LegacyService());
+            factory.setProxyTargetClass(proxyTargetClass);
+            factory.addAdvice(interceptor);
+            ExampleService proxy = (ExampleService) factory.getProxy();
+
+            assertEquals("intercepted", proxy.overrideMethod("a"));
+            assertEquals("local: b", proxy.localMethod("b"));
+        }
+    }
+
+}